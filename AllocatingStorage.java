@@ -0,0 +1,274 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage allocating the files of another storage in one of three ways:
+ *
+ * SPARSE sets the length of the files when they are opened, as the storages
+ * do by themselves. The system then allocates the blocks of the files as the
+ * pieces are written, in the order they are downloaded.
+ *
+ * FULL zero-fills the part of the files beyond their current length in large
+ * sequential chunks, on a background thread, so that their blocks are laid
+ * out in order on the disk. The ranges already written by the pieces are
+ * skipped, so the download goes on meanwhile.
+ *
+ * NONE leaves the files at their current length and lets them grow as the
+ * pieces are written.
+ */
+public class AllocatingStorage implements Storage {
+    public static final int SPARSE = 0;
+    public static final int FULL = 1;
+    public static final int NONE = 2;
+
+    private final Storage storage;
+    private final int mode;
+    private long[] lengths = new long[0];
+    /**
+     * For each file, the offset up to which it is allocated, the ranges
+     * written beyond it, keyed by their start and giving their end, and the
+     * lock guarding them
+     */
+    private long[] frontier = new long[0];
+    private List<TreeMap<Long, Long>> written;
+    private Object[] locks = new Object[0];
+    private volatile boolean closed = false;
+    private volatile boolean allocating = false;
+
+    /**
+     * Create a new storage allocating the files of the given storage
+     * @param storage The storage the files are read and written with
+     * @param mode SPARSE, FULL or NONE
+     */
+    public AllocatingStorage(Storage storage, int mode) {
+        this.storage = storage;
+        this.mode = mode;
+    }
+
+    public void open(File[] files, long[] lengths) throws IOException {
+        this.lengths = lengths.clone();
+        this.frontier = new long[files.length];
+        this.written = new ArrayList<TreeMap<Long, Long>>(files.length);
+        this.locks = new Object[files.length];
+        for (int i = 0; i < files.length; i++) {
+            this.frontier[i] = (this.mode == SPARSE) ? lengths[i] :
+                               Math.min(files[i].length(), lengths[i]);
+            this.written.add(new TreeMap<Long, Long>());
+            this.locks[i] = new Object();
+        }
+        this.storage.open(files, (this.mode == SPARSE) ? lengths :
+                          this.frontier.clone());
+        if (this.mode == FULL) {
+            this.allocating = true;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    fill();
+                }
+            }, "Allocator");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        }
+    }
+
+    /**
+     * Body of the background thread of the FULL mode: zero-fills the files
+     * one after the other, from their allocated offset to their length,
+     * skipping the ranges already written
+     */
+    private void fill() {
+        ByteBuffer zeros = ByteBuffer.allocate(Constants.ALLOCATION_CHUNK);
+        try {
+            for (int i = 0; i < this.frontier.length; i++) {
+                while (true) {
+                    synchronized (this.locks[i]) {
+                        if (this.closed)
+                            return;
+                        long f = this.frontier[i];
+                        TreeMap<Long, Long> w = this.written.get(i);
+                        Map.Entry<Long, Long> e;
+                        while ((e = w.firstEntry()) != null &&
+                               e.getKey().longValue() <= f) {
+                            f = Math.max(f, e.getValue().longValue());
+                            w.remove(e.getKey());
+                        }
+                        long end = Math.min(f + zeros.capacity(), this.lengths[i]);
+                        if (!w.isEmpty())
+                            end = Math.min(end, w.firstKey());
+                        if (f >= end) {
+                            this.frontier[i] = Math.max(f, this.frontier[i]);
+                            break;
+                        }
+                        if (this.storage.size(i) < end)
+                            this.storage.allocate(i, end);
+                        zeros.clear();
+                        zeros.limit((int) (end - f));
+                        this.storage.write(i, f, zeros);
+                        this.frontier[i] = end;
+                    }
+                    Thread.yield();
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Could not allocate files: " + ioe.getMessage());
+        } finally {
+            this.allocating = false;
+        }
+    }
+
+    /**
+     * Returns true while the files are being zero-filled in the background
+     * @return boolean
+     */
+    public boolean isAllocating() {
+        return this.allocating;
+    }
+
+    /**
+     * Returns the number of bytes of the files already allocated, i.e. the
+     * length of the files with the NONE mode
+     * @return long
+     */
+    public long getAllocated() {
+        long a = 0;
+        for (int i = 0; i < this.frontier.length; i++) {
+            synchronized (this.locks[i]) {
+                if (this.mode != NONE) {
+                    a += this.frontier[i];
+                    continue;
+                }
+                try {
+                    a += this.storage.size(i);
+                } catch (IOException ioe) {}
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Returns the total length of the files
+     * @return long
+     */
+    public long getLength() {
+        long l = 0;
+        for (int i = 0; i < this.lengths.length; i++)
+            l += this.lengths[i];
+        return l;
+    }
+
+    public int getNbFiles() {
+        return this.storage.getNbFiles();
+    }
+
+    public long size(int file) throws IOException {
+        return this.storage.size(file);
+    }
+
+    public void allocate(int file, long length) throws IOException {
+        synchronized (this.locks[file]) {
+            this.lengths[file] = length;
+            this.frontier[file] = Math.min(this.frontier[file], length);
+            this.storage.allocate(file, length);
+        }
+    }
+
+    public int read(int file, long position, ByteBuffer dst) throws IOException {
+        return this.storage.read(file, position, dst);
+    }
+
+    /**
+     * Writes the data, growing the file first if needed. Beyond the allocated
+     * offset of the file, the range is recorded so that it is not zero-filled
+     * afterwards
+     */
+    public int write(int file, long position, ByteBuffer src) throws IOException {
+        if (this.mode != SPARSE) {
+            long end = position + src.remaining();
+            synchronized (this.locks[file]) {
+                if (end > this.frontier[file] && this.mode == FULL) {
+                    long start = Math.max(position, this.frontier[file]);
+                    Long old = this.written.get(file).get(start);
+                    if (old == null || old.longValue() < end)
+                        this.written.get(file).put(start, end);
+                }
+                if (this.storage.size(file) < end)
+                    this.storage.allocate(file, end);
+            }
+        }
+        return this.storage.write(file, position, src);
+    }
+
+    public long transferTo(int file, long position, long count,
+                           WritableByteChannel target) throws IOException {
+        return this.storage.transferTo(file, position, count, target);
+    }
+
+    public ByteBuffer map(int file, long position, int length) throws IOException {
+        return this.storage.map(file, position, length);
+    }
+
+    public void flush() throws IOException {
+        this.storage.flush();
+    }
+
+    public void flush(int file) throws IOException {
+        this.storage.flush(file);
+    }
+
+    public void close() throws IOException {
+        this.closed = true;
+        for (int i = 0; i < this.locks.length; i++)
+            synchronized (this.locks[i]) {}
+        this.storage.close();
+    }
+
+    public boolean isPersistent() {
+        return this.storage.isPersistent();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+/**
+ * A block requested to a remote peer and not received yet
+ */
+public class BlockRequest {
+    private final int piece;
+    private final int begin;
+    private final int length;
+    private final long time;
+
+    /**
+     * Create a request for the given block, sent now
+     * @param piece The piece index
+     * @param begin The offset of the block within the piece
+     * @param length The length of the block
+     */
+    public BlockRequest(int piece, int begin, int length) {
+        this.piece = piece;
+        this.begin = begin;
+        this.length = length;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the piece index
+     * @return int
+     */
+    public int getPiece() {
+        return this.piece;
+    }
+
+    /**
+     * Returns the offset of the block within the piece
+     * @return int
+     */
+    public int getBegin() {
+        return this.begin;
+    }
+
+    /**
+     * Returns the length of the block
+     * @return int
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns the time the request was sent
+     * @return long
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * Returns true if this request is for the given block
+     * @param piece int
+     * @param begin int
+     * @return boolean
+     */
+    public boolean isFor(int piece, int begin) {
+        return this.piece == piece && this.begin == begin;
+    }
+
+    /**
+     * Returns the REQUEST message payload for this block
+     * @return byte[]
+     */
+    public byte[] toPayload() {
+        return Utils.concat(Utils.intToByteArray(this.piece),
+                            Utils.concat(Utils.intToByteArray(this.begin),
+                                         Utils.intToByteArray(this.length)));
+    }
+
+    public String toString() {
+        return "<index=" + this.piece + "><begin=" + this.begin + "><length=" +
+                this.length + ">";
+    }
+}
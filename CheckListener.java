@@ -0,0 +1,56 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.util.EventListener;
+
+public interface CheckListener extends EventListener{
+    /**
+     * Fired by a checking thread once the data of a piece has been checked
+     * @param piece The piece index
+     * @param complete True if the data in the files matches the piece hash
+     */
+    public void pieceChecked(int piece, boolean complete);
+
+    /**
+     * Fired once all the pieces have been checked
+     * @param nbComplete The number of complete pieces
+     */
+    public void checkCompleted(int nbComplete);
+}
@@ -38,23 +38,29 @@
 package jBittorrentAPI;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.swing.event.EventListenerList;
 
 /**
- * Thread that can listen for remote peers connection tries to this client
+ * Task that can listen for remote peers connection tries to this client
  *
  * @author Baptiste Dubuis
  * @version 0.1
  */
-public class ConnectionListener extends Thread {
+public class ConnectionListener implements Runnable {
     private ServerSocket ss = null;
     private int minPort = -1;
     private int maxPort = -1;
     private int connectedPort = -1;
     private final EventListenerList listeners = new EventListenerList();
-    private boolean acceptConnection = true;
+    private volatile boolean acceptConnection = true;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition acceptChanged = lock.newCondition();
 
     public ConnectionListener() {}
     public ConnectionListener(int minPort, int maxPort){
@@ -104,7 +110,8 @@ public class ConnectionListener extends Thread {
 
     /**
      * Try to create a server socket for remote peers to connect on within the
-     * specified port range
+     * specified port range. The server socket is backed by a channel, so that
+     * accepted sockets can also be driven by a NIOEngine
      * @param minPort The minimal port number this client should listen on
      * @param maxPort The maximal port number this client should listen on
      * @return boolean
@@ -114,10 +121,16 @@ public class ConnectionListener extends Thread {
         this.maxPort = maxPort;
         for(int i = minPort; i <= maxPort; i++)
             try {
-                this.ss = new ServerSocket(i);
+                ServerSocketChannel ssc = ServerSocketChannel.open();
+                try {
+                    ssc.socket().bind(new InetSocketAddress(i));
+                } catch (IOException ioe) {
+                    ssc.close();
+                    throw ioe;
+                }
+                this.ss = ssc.socket();
                 this.connectedPort = i;
-                this.setDaemon(true);
-                this.start();
+                TaskRunner.start(this, "CL_" + i, true);
                 return true;
             } catch (IOException ioe) {}
         return false;
@@ -136,16 +149,19 @@ public class ConnectionListener extends Thread {
     }
 
     public void run() {
-        byte[] b = new byte[0];
         try {
             while (true) {
                 if(this.acceptConnection){
                     this.fireConnectionAccepted(ss.accept());
-                    sleep(1000);
+                    Thread.sleep(1000);
                 }else{
-                    synchronized(b){
+                    this.lock.lock();
+                    try{
                         System.out.println("No more connection accepted for the moment...");
-                        b.wait();
+                        while(!this.acceptConnection)
+                            this.acceptChanged.await();
+                    }finally{
+                        this.lock.unlock();
                     }
                 }
             }
@@ -161,9 +177,14 @@ public class ConnectionListener extends Thread {
      * Decides if the client should accept or not future connection
      * @param accept true if it should accept, false otherwise
      */
-    public synchronized void setAccept(boolean accept){
-        this.acceptConnection = accept;
-        this.notifyAll();
+    public void setAccept(boolean accept){
+        this.lock.lock();
+        try{
+            this.acceptConnection = accept;
+            this.acceptChanged.signalAll();
+        }finally{
+            this.lock.unlock();
+        }
     }
 
 
@@ -65,6 +65,94 @@ public class
     public static final String CLIENT = "jBittorrentAPI 1.0";
     public static String SAVEPATH = "downloads/";
 
+    /**
+     * Maximal length of a message accepted from a remote peer. Longer messages
+     * are considered malformed and the connection is closed
+     */
+    public static int MAX_MESSAGE_LENGTH = 1 << 20;
+    /**
+     * True if network buffers should be allocated out of the heap
+     */
+    public static boolean DIRECT_BUFFERS = false;
+    /**
+     * Bounds of the number of block requests kept outstanding to a peer
+     */
+    public static int MIN_REQUEST_DEPTH = 2;
+    public static int MAX_REQUEST_DEPTH = 250;
+    /**
+     * Maximal number of pieces a task downloads at the same time from a peer
+     */
+    public static int MAX_PIECES_PER_TASK = 4;
+    /**
+     * Maximal number of free piece buffers kept for reuse, and true if they
+     * should be allocated out of the heap
+     */
+    public static int PIECE_BUFFER_POOL = 16;
+    public static boolean DIRECT_PIECE_BUFFERS = false;
+    /**
+     * Maximal number of piece buffers in use, i.e. of pieces being downloaded.
+     * No new piece is started while that many buffers are in use
+     */
+    public static int PIECE_BUFFERS = 64;
+    /**
+     * Maximal number of downloaded pieces waiting for hash verification
+     */
+    public static int VERIFY_QUEUE = 64;
+    /**
+     * True if the pieces recorded in the resume journal of a torrent are
+     * trusted at startup when their files have not changed, and the number of
+     * piece records after which the journal is compacted
+     */
+    public static boolean FAST_RESUME = true;
+    public static int RESUME_COMPACT = 1024;
+    /**
+     * Time in milliseconds the background check of the pieces waits before a
+     * piece after live disk traffic
+     */
+    public static int CHECK_PAUSE = 20;
+    /**
+     * Size in bytes of the windows the MappedStorage maps the files in, and
+     * maximal number of windows it keeps in its cache. The windows dropped
+     * from the cache stay mapped until they are garbage collected
+     */
+    public static int MAPPED_WINDOW_SIZE = 64 << 20;
+    public static int MAPPED_WINDOWS = 64;
+    /**
+     * Size in bytes of the cache of the pieces read for the uploads. The first
+     * request for a block of a piece reads the whole piece into the cache.
+     * With 0, blocks are sent straight from the files without any cache
+     */
+    public static long READ_CACHE = 0;
+    /**
+     * Number of bytes of verified pieces the write-back cache gathers before
+     * flushing them, 0 to write each piece at once, the time in milliseconds
+     * a piece waits at most in the cache, and the size of the buffer the
+     * consecutive pieces are copied into to be written at once
+     */
+    public static long WRITE_CACHE = 0;
+    public static long WRITE_CACHE_DELAY = 2000;
+    public static int WRITE_RUN = 4 << 20;
+    /**
+     * When the written data is forced to the device, one of the SYNC_ values
+     * of WriteBackCache, and the time in milliseconds between two forces with
+     * the periodic policy
+     */
+    public static int SYNC_POLICY = WriteBackCache.SYNC_NEVER;
+    public static long SYNC_INTERVAL = 30000;
+    /**
+     * Number of threads reading and writing the pieces, and maximal number of
+     * reads and of writes queued for a download
+     */
+    public static int DISK_THREADS = 2;
+    public static int DISK_QUEUE = 16;
+    /**
+     * How the files of the torrents are allocated, one of the modes of
+     * AllocatingStorage, and the size of the chunks the FULL mode zero-fills
+     * the files with
+     */
+    public static int ALLOCATION = AllocatingStorage.SPARSE;
+    public static int ALLOCATION_CHUNK = 4 << 20;
+
     public static final String OSName = System.getProperty("os.name");
 
     public static final boolean isOSX = OSName.toLowerCase().startsWith(
@@ -51,7 +51,9 @@ public interface DTListener extends EventListener{
     public void pieceRequested(int pieceNB, boolean requested);
     public void taskCompleted(String id, int reason);
     public void peerAvailability(String id, BitSet hasPiece);
+    public void peerHave(String id, int piece);
     public void peerReady(String id);
     public void peerRequest(String peerID,int piece, int begin, int length);
+    public void blockReceived(String peerID, int piece, int begin);
     public void addActiveTask(String id, DownloadTask dt);
 }
@@ -0,0 +1,282 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs the disk jobs of the downloads, i.e. the reads of the pieces for the
+ * uploads and the writes of the verified pieces, on a pool of threads of its
+ * own, so that a slow disk does not stall the connections. The pool is shared
+ * by all the downloads.
+ *
+ * Each download has a bounded queue of jobs for each kind of job. The threads
+ * serve the downloads in turn and alternate between reads and writes, so that
+ * a download with many jobs does not starve the others. When the queue of a
+ * download is full, trySubmit() fails and lets the caller do without or hold
+ * back the job, so that a slow disk never stalls the threads driving the
+ * connections.
+ *
+ * The time the jobs wait in their queue is kept in a histogram for each kind
+ * of job, whose bucket i counts the jobs that waited less than 2^i
+ * microseconds.
+ */
+public class DiskIO {
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int BUCKETS = 32;
+
+    private static DiskIO instance = null;
+
+    private final int capacity;
+    /**
+     * The queues of each download, and the downloads with queued jobs in the
+     * order they are served
+     */
+    private final HashMap<Object, Queues> queues = new HashMap<Object, Queues>();
+    private final LinkedList<Queues> ready = new LinkedList<Queues>();
+    private final long[][] histogram = new long[2][BUCKETS];
+    private final long[] completed = new long[2];
+
+    /**
+     * The jobs of a download
+     */
+    private static class Queues {
+        final Object owner;
+        final List<LinkedList<Job>> jobs = new ArrayList<LinkedList<Job>>(2);
+        int turn = WRITE;
+        int running = 0;
+
+        Queues(Object owner) {
+            this.owner = owner;
+            this.jobs.add(new LinkedList<Job>());
+            this.jobs.add(new LinkedList<Job>());
+        }
+
+        boolean isEmpty() {
+            return this.jobs.get(READ).isEmpty() &&
+                    this.jobs.get(WRITE).isEmpty();
+        }
+    }
+
+    /**
+     * A job waiting in a queue
+     */
+    private static class Job {
+        final int kind;
+        final Runnable r;
+        final long submitted = System.nanoTime();
+
+        Job(int kind, Runnable r) {
+            this.kind = kind;
+            this.r = r;
+        }
+    }
+
+    /**
+     * Create a new pool of disk threads
+     * @param threads The number of threads
+     * @param capacity The maximal number of jobs of each kind queued for a
+     * download
+     */
+    public DiskIO(int threads, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "DiskIO_" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Returns the pool shared by all the downloads, created on first use with
+     * Constants.DISK_THREADS threads
+     * @return DiskIO
+     */
+    public static synchronized DiskIO getDefault() {
+        if (instance == null)
+            instance = new DiskIO(Constants.DISK_THREADS, Constants.DISK_QUEUE);
+        return instance;
+    }
+
+    /**
+     * Queues a job if the queue of the download is not full
+     * @param owner The download the job belongs to
+     * @param kind READ or WRITE
+     * @param r The job
+     * @return boolean False if the queue is full and the job was not queued
+     */
+    public synchronized boolean trySubmit(Object owner, int kind, Runnable r) {
+        Queues q = this.queues(owner);
+        if (q.jobs.get(kind).size() >= this.capacity)
+            return false;
+        this.add(q, new Job(kind, r));
+        return true;
+    }
+
+    /**
+     * Waits until all the jobs of the download have been run
+     * @param owner Object
+     */
+    public synchronized void waitIdle(Object owner) {
+        Queues q = this.queues.get(owner);
+        while (q != null && (q.running > 0 || !q.isEmpty())) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    private Queues queues(Object owner) {
+        Queues q = this.queues.get(owner);
+        if (q == null) {
+            q = new Queues(owner);
+            this.queues.put(owner, q);
+        }
+        return q;
+    }
+
+    private void add(Queues q, Job j) {
+        if (q.isEmpty())
+            this.ready.add(q);
+        q.jobs.get(j.kind).add(j);
+        this.notifyAll();
+    }
+
+    /**
+     * Body of the disk threads: takes the next job of the next download and
+     * runs it
+     */
+    private void work() {
+        while (true) {
+            Queues q;
+            Job j;
+            synchronized (this) {
+                while (this.ready.isEmpty()) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {}
+                }
+                q = this.ready.removeFirst();
+                int kind = q.jobs.get(q.turn).isEmpty() ? 1 - q.turn : q.turn;
+                q.turn = 1 - kind;
+                j = q.jobs.get(kind).removeFirst();
+                if (!q.isEmpty())
+                    this.ready.add(q);
+                q.running++;
+                long wait = (System.nanoTime() - j.submitted) / 1000;
+                int bucket = 64 - Long.numberOfLeadingZeros(wait);
+                this.histogram[kind][Math.min(bucket, BUCKETS - 1)]++;
+            }
+            try {
+                j.r.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            synchronized (this) {
+                q.running--;
+                this.completed[j.kind]++;
+                if (q.running == 0 && q.isEmpty())
+                    this.queues.remove(q.owner);
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of jobs of the given kind waiting for the download
+     * @param owner Object
+     * @param kind READ or WRITE
+     * @return int
+     */
+    public synchronized int getQueueSize(Object owner, int kind) {
+        Queues q = this.queues.get(owner);
+        return (q == null) ? 0 : q.jobs.get(kind).size();
+    }
+
+    /**
+     * Returns the number of jobs of the given kind run so far
+     * @param kind READ or WRITE
+     * @return long
+     */
+    public synchronized long getCompleted(int kind) {
+        return this.completed[kind];
+    }
+
+    /**
+     * Returns a copy of the histogram of the time the jobs of the given kind
+     * waited in their queue. Bucket i counts the jobs that waited less than
+     * 2^i microseconds, and at least 2^(i-1)
+     * @param kind READ or WRITE
+     * @return long[]
+     */
+    public synchronized long[] getLatencyHistogram(int kind) {
+        return this.histogram[kind].clone();
+    }
+
+    /**
+     * Returns an upper bound of the time the given fraction of the jobs of the
+     * given kind waited in their queue at most, e.g. 0.99 for the 99th
+     * percentile
+     * @param kind READ or WRITE
+     * @param fraction double
+     * @return long The time in microseconds, 0 if no job was run
+     */
+    public synchronized long getLatencyPercentile(int kind, double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += this.histogram[kind][i];
+        long n = 0;
+        for (int i = 0; i < BUCKETS && total > 0; i++) {
+            n += this.histogram[kind][i];
+            if (n >= fraction * total)
+                return 1L << i;
+        }
+        return 0;
+    }
+}
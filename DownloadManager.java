@@ -41,13 +41,15 @@ import java.util.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Object that manages all concurrent downloads. It chooses which piece to request
  * to which peer.
  */
 public class DownloadManager implements DTListener, PeerUpdateListener,
-        ConListenerInterface {
+        ConListenerInterface, CheckListener, WriteListener {
 
     // Client ID
     private byte[] clientID;
@@ -60,13 +62,47 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
     private long length = 0;
     private long left = 0;
     private Piece[] pieceList;
-    private BitSet isComplete;
-    private BitSet isRequested;
+    /**
+     * State of each piece, read and updated without taking the manager lock
+     */
+    private PieceStates states;
     private int nbPieces;
-    private RandomAccessFile[] output_files;
+    private Storage storage;
+    private AllocatingStorage allocator = null;
+    private File[] localFiles;
+    private ResumeJournal journal = null;
+    private PieceChecker checker = null;
 
     private PeerUpdater pu = null;
     private ConnectionListener cl = null;
+    private NIOEngine engine = null;
+    private volatile boolean endgame = false;
+    private PiecePicker picker;
+    private PieceBufferPool bufferPool;
+    /**
+     * True if a task could not start a new piece because all the piece
+     * buffers were in use
+     */
+    private boolean buffersExhausted = false;
+    private PieceCache readCache = null;
+    private DiskIO disk;
+    /**
+     * Writes of verified pieces waiting for room in the write queue of this
+     * download. No new piece is assigned to the tasks while there are some
+     */
+    private final LinkedList<Runnable> parkedWrites = new LinkedList<Runnable>();
+    private WriteBackCache writeCache;
+    /**
+     * Pieces known to be in the files, i.e. found at startup or written by
+     * the write-back cache, and files forced to the device once complete
+     */
+    private BitSet written;
+    private BitSet syncedFiles = new BitSet();
+    /**
+     * Pieces announced to the peers and lost since, because their write
+     * failed. The requests for them are ignored until they are complete again
+     */
+    private final BitSet lost = new BitSet();
 
     private List unchokeList = new LinkedList();
 
@@ -81,13 +117,51 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
     private long lastUnchoking = 0;
     private short optimisticUnchoke = 3;
 
+    /**
+     * Guards the manager state. A ReentrantLock is used instead of the object
+     * monitor so that tasks running on virtual threads do not pin their carrier
+     * while waiting for it
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     /**
      * Create a new manager according to the given torrent and using the client id provided
      * @param torrent TorrentFile
      * @param clientID byte[]
      */
     public DownloadManager(TorrentFile torrent, final byte[] clientID) {
+        this(torrent, clientID, new FileChannelStorage());
+    }
+
+    /**
+     * Create a new manager according to the given torrent and using the client
+     * id provided, storing the files of the torrent in the given storage
+     * @param torrent TorrentFile
+     * @param clientID byte[]
+     * @param storage The storage to open the files in
+     */
+    public DownloadManager(TorrentFile torrent, final byte[] clientID,
+                           Storage storage) {
+        this(torrent, clientID, storage, Constants.ALLOCATION);
+    }
+
+    /**
+     * Create a new manager according to the given torrent and using the client
+     * id provided, storing the files of the torrent in the given storage and
+     * allocating them with the given mode
+     * @param torrent TorrentFile
+     * @param clientID byte[]
+     * @param storage The storage to open the files in
+     * @param allocation AllocatingStorage.SPARSE, FULL or NONE
+     */
+    public DownloadManager(TorrentFile torrent, final byte[] clientID,
+                           Storage storage, int allocation) {
         this.clientID = clientID;
+        if (allocation != AllocatingStorage.SPARSE) {
+            this.allocator = new AllocatingStorage(storage, allocation);
+            storage = this.allocator;
+        }
+        this.storage = storage;
         this.peerList = new LinkedHashMap<String, Peer>();
         //this.peerList = new LinkedList<Peer>();
         this.task = new TreeMap<String, DownloadTask>();
@@ -98,54 +172,173 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
         this.pieceList = new Piece[this.nbPieces];
         this.nbOfFiles = this.torrent.length.size();
 
-        this.isComplete = new BitSet(nbPieces);
-        this.isRequested = new BitSet(nbPieces);
-        this.output_files = new RandomAccessFile[this.nbOfFiles];
+        this.states = new PieceStates(nbPieces);
+        this.picker = new PiecePicker(nbPieces);
+        this.bufferPool = new PieceBufferPool(this.torrent.pieceLength,
+                                              Constants.PIECE_BUFFER_POOL,
+                                              Constants.PIECE_BUFFERS,
+                                              Constants.DIRECT_PIECE_BUFFERS);
+        if (Constants.READ_CACHE > 0)
+            this.readCache = new PieceCache(Constants.READ_CACHE);
+        this.localFiles = new File[this.nbOfFiles];
 
         this.length = this.torrent.total_length;
         this.left = this.length;
 
         this.checkTempFiles();
+        long[] lengths = new long[this.nbOfFiles];
+        for (int i = 0; i < this.nbOfFiles; i++)
+            lengths[i] = ((Long) this.torrent.length.get(i)).longValue();
+        this.written = new BitSet(this.nbPieces);
+        this.writeCache = new WriteBackCache(this.storage, lengths,
+                this.torrent.pieceLength, Constants.WRITE_CACHE,
+                Constants.WRITE_CACHE_DELAY,
+                (Constants.SYNC_POLICY == WriteBackCache.SYNC_PERIODIC) ?
+                Constants.SYNC_INTERVAL : 0);
+        this.writeCache.addWriteListener(this);
+        this.disk = DiskIO.getDefault();
 
         /**
          * Construct all the pieces with the correct length and hash value
          */
         int file = 0;
-        int fileoffset = 0;
+        long fileoffset = 0;
         for (int i = 0; i < this.nbPieces; i++) {
-            TreeMap<Integer, Integer> tm = new TreeMap<Integer, Integer>();
-            int pieceoffset = 0;
+            TreeMap<Integer, Long> tm = new TreeMap<Integer, Long>();
+            int pieceLength = (i != this.nbPieces - 1) ?
+                              this.torrent.pieceLength :
+                              (int) (this.length -
+                                     (long) i * this.torrent.pieceLength);
+            long pieceoffset = 0;
             do {
                 tm.put(file, fileoffset);
-                if (fileoffset + this.torrent.pieceLength - pieceoffset >=
-                    (Integer) (torrent.length.get(file)) &&
-                    i != this.nbPieces - 1) {
-                    pieceoffset += ((Integer) (torrent.length.get(file))).
-                            intValue() - fileoffset;
+                long fileLength = ((Long) torrent.length.get(file)).longValue();
+                if (fileoffset + pieceLength - pieceoffset >= fileLength &&
+                    file != this.nbOfFiles - 1) {
+                    pieceoffset += fileLength - fileoffset;
                     file++;
                     fileoffset = 0;
-                    if (pieceoffset == this.torrent.pieceLength)
+                    if (pieceoffset == pieceLength)
                         break;
                 } else {
-                    fileoffset += this.torrent.pieceLength - pieceoffset;
+                    fileoffset += pieceLength - pieceoffset;
                     break;
                 }
             } while (true);
-            pieceList[i] = new Piece(i,
-                                     (i != this.nbPieces - 1) ?
-                                     this.torrent.pieceLength :
-                                     ((Long) (this.length %
-                                              this.torrent.pieceLength)).
-                                     intValue(),
-                                     16384, (byte[]) torrent.
-                                     piece_hash_values_as_binary.get(i), tm);
+            pieceList[i] = new Piece(i, pieceLength,
+                                     16384, torrent.
+                                     piece_hash_values_as_binary.get(i), tm,
+                                     this.bufferPool);
             //System.out.println("Piece " + i + " is complete: " + this.testComplete(i));
-            if (this.testComplete(i)) {
+        }
+        this.checkPieces();
+        this.lastUnchoking = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks which pieces are already in the files. The pieces lying in files
+     * that have not changed since the resume journal was written are taken
+     * from the journal, the others are hashed in parallel in the background,
+     * so that the download can start at once. They are neither downloaded nor
+     * announced until checked. A new snapshot of the journal is written once
+     * all the pieces are checked. Nothing is checked if the storage does not
+     * keep the files between runs
+     */
+    private void checkPieces() {
+        if (!this.storage.isPersistent())
+            return;
+        long[] lengths = new long[this.nbOfFiles];
+        for (int i = 0; i < this.nbOfFiles; i++)
+            lengths[i] = ((Long) this.torrent.length.get(i)).longValue();
+        this.journal = new ResumeJournal(new File(Constants.SAVEPATH +
+                ".resume/" + this.torrent.info_hash_as_hex + ".journal"),
+                this.torrent.info_hash_as_binary, this.nbPieces,
+                this.localFiles, Constants.RESUME_COMPACT);
+        boolean resume = Constants.FAST_RESUME && this.journal.load();
+        boolean[] unchanged = new boolean[this.nbOfFiles];
+        for (int i = 0; i < this.nbOfFiles; i++)
+            unchanged[i] = resume && this.journal.isFileUnchanged(i);
+        BitSet recorded = this.journal.getComplete();
+        ArrayList<Piece> toCheck = new ArrayList<Piece>();
+        for (int i = 0; i < this.nbPieces; i++) {
+            boolean trusted = true;
+            for (int f : this.pieceList[i].getFileAndOffset().keySet())
+                trusted &= unchanged[f];
+            if (!trusted) {
+                toCheck.add(this.pieceList[i]);
+                this.states.set(i, PieceStates.CHECKING);
+            } else if (recorded.get(i)) {
                 this.setComplete(i, true);
+                this.written.set(i);
                 this.left -= this.pieceList[i].getLength();
             }
         }
-        this.lastUnchoking = System.currentTimeMillis();
+        this.checker = new PieceChecker(toCheck.toArray(new Piece[0]),
+                                        this.storage, lengths);
+        this.checker.setPause(Constants.CHECK_PAUSE);
+        this.checker.addCheckListener(this);
+        this.checker.start();
+    }
+
+    /**
+     * Returns true while the pieces found in the files at startup are being
+     * checked
+     * @return boolean
+     */
+    public boolean isChecking() {
+        return this.checker != null && !this.checker.isDone();
+    }
+
+    /**
+     * Received when a piece has been checked at startup. If its data is
+     * correct, it is marked as complete and announced to the connected peers.
+     * Otherwise, it can now be downloaded
+     * @param piece int
+     * @param complete boolean
+     */
+    public void pieceChecked(int piece, boolean complete) {
+        if (!complete) {
+            this.states.compareAndSet(piece, PieceStates.CHECKING,
+                                      PieceStates.MISSING);
+            return;
+        }
+        this.lock.lock();
+        try {
+            if (!this.states.compareAndSet(piece, PieceStates.CHECKING,
+                                           PieceStates.COMPLETE))
+                return;
+            synchronized (this.written) {
+                this.written.set(piece);
+            }
+            this.picker.remove(piece);
+            this.left -= this.pieceList[piece].getLength();
+            if (this.pu != null)
+                this.pu.decreaseLeft(this.pieceList[piece].getLength());
+            for (DownloadTask dt : this.task.values())
+                dt.sendHave(piece);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Received once all the pieces have been checked at startup. The resume
+     * journal is started again from the pieces now known
+     * @param nbComplete int
+     */
+    public void checkCompleted(int nbComplete) {
+        if (this.journal == null)
+            return;
+        try {
+            BitSet complete;
+            synchronized (this.written) {
+                complete = (BitSet) this.written.clone();
+            }
+            this.journal.snapshot(complete);
+        } catch (IOException ioe) {
+            System.err.println("Could not write resume journal: " +
+                               ioe.getMessage());
+        }
     }
 
     public boolean testComplete(int piece) {
@@ -223,16 +416,73 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
         }
     }
 
+    /**
+     * Drive all future peer connections of this manager with the given engine
+     * instead of a sender and a receiver thread per peer. The engine can be
+     * shared between several managers. Must be called before the peers are
+     * connected, i.e. before startListening and startTrackerUpdate
+     * @param engine The engine to use, or null to go back to the threaded model
+     */
+    public void setNIOEngine(NIOEngine engine) {
+        this.lock.lock();
+        try {
+            this.engine = engine;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the engine driving the peer connections, null if each connection
+     * has its own sender and receiver threads
+     * @return NIOEngine
+     */
+    public NIOEngine getNIOEngine() {
+        this.lock.lock();
+        try {
+            return this.engine;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the given task, either as a thread or on the NIO engine
+     * @param dt DownloadTask
+     */
+    private void startTask(DownloadTask dt) {
+        dt.setPieceStates(this.states);
+        if (this.engine == null) {
+            dt.start();
+            return;
+        }
+        try {
+            dt.initConnection(this.engine);
+        } catch (IOException ioe) {
+            dt.connectionClosed();
+        }
+    }
+
     /**
      * Close all open files
      */
     public void closeTempFiles() {
-        for (int i = 0; i < this.output_files.length; i++)
-            try {
-                this.output_files[i].close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        do {
+            this.submitParkedWrites();
+            this.disk.waitIdle(this);
+        } while (this.isDiskBusy());
+        try {
+            this.writeCache.close();
+        } catch (IOException ioe) {
+            System.err.println("Could not write pieces: " + ioe.getMessage());
+        }
+        if (this.journal != null)
+            this.journal.close();
+        try {
+            this.storage.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -242,96 +492,211 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @return int
      * @todo Should return an integer representing some error message...
      */
-    public synchronized int checkTempFiles() {
-        String saveas = Constants.SAVEPATH; // Should be configurable
-        if (this.nbOfFiles > 1)
-            saveas += this.torrent.saveAs + "/";
-        new File(saveas).mkdirs();
-        for (int i = 0; i < this.nbOfFiles; i++) {
-            File temp = new File(saveas + ((String) (this.torrent.name.get(i))));
+    public int checkTempFiles() {
+        this.lock.lock();
+        try {
+            String saveas = Constants.SAVEPATH; // Should be configurable
+            if (this.nbOfFiles > 1)
+                saveas += this.torrent.saveAs + "/";
+            if (this.storage.isPersistent())
+                new File(saveas).mkdirs();
+            long[] lengths = new long[this.nbOfFiles];
+            for (int i = 0; i < this.nbOfFiles; i++) {
+                this.localFiles[i] = new File(saveas +
+                                              ((String) (this.torrent.name.get(i))));
+                lengths[i] = (Long)this.torrent.length.get(i);
+            }
+            /**
+             * The storage only sets the length of a file if it differs, so
+             * that the modification time of the files checked against the
+             * resume journal is left untouched
+             */
             try {
-                this.output_files[i] = new RandomAccessFile(temp, "rw");
-                this.output_files[i].setLength((Integer)this.torrent.length.get(
-                        i));
+                this.storage.open(this.localFiles, lengths);
             } catch (IOException ioe) {
                 System.err.println("Could not create temp files");
                 ioe.printStackTrace();
             }
+            return 0;
+        } finally {
+            this.lock.unlock();
         }
-        return 0;
     }
 
     /**
-     * Save a piece in the corresponding file(s)
+     * Save a piece in the corresponding file(s), through the write-back cache.
+     * The manager is not locked: the storage writes at the given positions,
+     * so the pieces can be saved while others are read for the uploads. If
+     * the piece cannot be written, it is downloaded again
      * @param piece int
+     * @return boolean True if the piece has been written or cached
      */
-    public synchronized void savePiece(int piece) {
-        //int remaining = this.pieceList[piece].getLength();
-        byte[] data = this.pieceList[piece].data();
-        int remainingData = data.length;
-        for (Iterator it = this.pieceList[piece].getFileAndOffset().keySet().
-                           iterator(); it.hasNext(); ) {
-            try {
-                Integer file = (Integer) (it.next());
-                int remaining = ((Integer)this.torrent.length.get(file.intValue())).
-                                intValue()
-                                -
-                                ((Integer) (this.pieceList[piece].
-                                            getFileAndOffset().
-                                            get(file))).intValue();
-                this.output_files[file.intValue()].seek(((Integer)
-                        (this.pieceList[piece].getFileAndOffset().get(file))).
-                        intValue());
-                this.output_files[file.intValue()].write(data,
-                        data.length - remainingData,
-                        (remaining < remainingData) ? remaining : remainingData);
-                remainingData -= remaining;
-            } catch (IOException ioe) {
-                System.err.println(ioe.getMessage());
-            }
+    public boolean savePiece(int piece) {
+        if (this.checker != null)
+            this.checker.liveIO();
+        boolean saved = true;
+        try {
+            this.writeCache.put(piece, this.pieceList[piece].getData());
+        } catch (IOException ioe) {
+            System.err.println("Could not write piece " + piece + ": " +
+                               ioe.getMessage());
+            saved = false;
         }
-        data = null;
         this.pieceList[piece].clearData();
+        if (this.readCache != null)
+            this.readCache.remove(piece);
+        if (!saved)
+            this.writeFailed(new int[] {piece});
+        return saved;
     }
 
     /**
-     * Save the downloaded files into the corresponding directories
-     * @deprecated
+     * Received once pieces have been written to the files. They are recorded
+     * in the resume journal and, with the SYNC_ON_FILE_COMPLETE policy, the
+     * files they complete are forced to the device
+     * @param pieces int[]
      */
-    public synchronized void save() {
-        synchronized (this) {
-            synchronized (this.isComplete) {
-                byte[] data = new byte[0];
-                for (int i = 0; i < this.nbPieces; i++) {
-                    if (this.pieceList[i] == null) {
+    public void piecesWritten(int[] pieces) {
+        synchronized (this.written) {
+            for (int i = 0; i < pieces.length; i++)
+                this.written.set(pieces[i]);
+        }
+        for (int i = 0; i < pieces.length; i++)
+            if (this.journal != null)
+                this.journal.pieceCompleted(pieces[i], this.pieceList[pieces[i]].
+                                            getFileAndOffset().keySet());
+        if (Constants.SYNC_POLICY != WriteBackCache.SYNC_ON_FILE_COMPLETE)
+            return;
+        for (int i = 0; i < pieces.length; i++)
+            for (int f : this.pieceList[pieces[i]].getFileAndOffset().keySet()) {
+                synchronized (this.written) {
+                    if (this.syncedFiles.get(f) || !this.isFileWritten(f))
+                        continue;
+                    this.syncedFiles.set(f);
+                }
+                try {
+                    this.storage.flush(f);
+                } catch (IOException ioe) {
+                    System.err.println("Could not sync file " + f + ": " +
+                                       ioe.getMessage());
+                }
+            }
+    }
 
-                    } else {
-                        data = Utils.concat(data, this.pieceList[i].data());
-                    }
+    /**
+     * Received when pieces could not be written to the files. Their data is
+     * lost, so the pieces that were complete or being saved are requested
+     * again, and the idle tasks are woken up to download them. The pieces
+     * that were complete count again in the bytes left, and the endgame is
+     * left. They have been announced to the peers already, so the requests
+     * for them are ignored until they are complete again
+     * @param pieces int[]
+     */
+    public void writeFailed(int[] pieces) {
+        this.lock.lock();
+        try {
+            boolean reset = false;
+            for (int i = 0; i < pieces.length; i++) {
+                int p = pieces[i];
+                synchronized (this.written) {
+                    this.written.clear(p);
                 }
-                String saveAs = Constants.SAVEPATH;
-                int offset = 0;
-                if (this.nbOfFiles > 1)
-                    saveAs += this.torrent.saveAs + "/";
-                for (int i = 0; i < this.nbOfFiles; i++) {
-                    try {
-                        new File(saveAs).mkdirs();
-                        FileOutputStream fos = new FileOutputStream(saveAs +
-                                ((String) (this.torrent.name.get(i))));
-                        fos.write(Utils.subArray(data, offset,
-                                                 ((Integer) (this.torrent.
-                                length.get(i))).intValue()));
-                        fos.flush();
-                        fos.close();
-                        offset += ((Integer) (this.torrent.length.get(i))).
-                                intValue();
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
-                        System.err.println("Error when saving the file " +
-                                           ((String) (this.torrent.name.get(i))));
+                if (this.states.compareAndSet(p, PieceStates.COMPLETE,
+                                              PieceStates.REQUESTED)) {
+                    int length = this.pieceList[p].getLength();
+                    this.left += length;
+                    if (this.pu != null)
+                        this.pu.increaseLeft(length);
+                    this.lost.set(p);
+                } else if (!this.states.compareAndSet(p, PieceStates.VERIFYING,
+                                                      PieceStates.REQUESTED))
+                    continue;
+                this.endgame = false;
+                this.picker.add(p);
+                if (this.readCache != null)
+                    this.readCache.remove(p);
+                reset = true;
+            }
+            if (reset)
+                for (DownloadTask dt :
+                     new ArrayList<DownloadTask>(this.task.values()))
+                    dt.wakeUp();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if all the pieces lying in the given file have been written
+     * @param file int
+     * @return boolean
+     */
+    private boolean isFileWritten(int file) {
+        long start = 0;
+        for (int i = 0; i < file; i++)
+            start += ((Long) this.torrent.length.get(i)).longValue();
+        long end = start + ((Long) this.torrent.length.get(file)).longValue();
+        if (end == start)
+            return true;
+        int first = (int) (start / this.torrent.pieceLength);
+        int last = (int) ((end - 1) / this.torrent.pieceLength);
+        return this.written.nextClearBit(first) > last;
+    }
+
+    /**
+     * Save the downloaded files into the corresponding directories. The data
+     * held by each piece is written at its offsets in the files, so the files
+     * can be larger than 2 GB
+     * @deprecated
+     */
+    public void save() {
+        this.lock.lock();
+        try {
+            String saveAs = Constants.SAVEPATH;
+            if (this.nbOfFiles > 1)
+                saveAs += this.torrent.saveAs + "/";
+            new File(saveAs).mkdirs();
+            RandomAccessFile[] out = new RandomAccessFile[this.nbOfFiles];
+            int i = 0;
+            try {
+                for (i = 0; i < this.nbOfFiles; i++) {
+                    out[i] = new RandomAccessFile(saveAs +
+                            ((String) (this.torrent.name.get(i))), "rw");
+                    out[i].setLength(((Long) (this.torrent.length.get(i))).
+                                     longValue());
+                }
+                for (int p = 0; p < this.nbPieces; p++) {
+                    if (this.pieceList[p] == null)
+                        continue;
+                    byte[] data = this.pieceList[p].data();
+                    int done = 0;
+                    for (Map.Entry<Integer, Long> e :
+                         this.pieceList[p].getFileAndOffset().entrySet()) {
+                        i = e.getKey().intValue();
+                        long position = e.getValue().longValue();
+                        int n = (int) Math.min(data.length - done,
+                                ((Long) (this.torrent.length.get(i))).
+                                longValue() - position);
+                        if (n <= 0)
+                            continue;
+                        out[i].seek(position);
+                        out[i].write(data, done, n);
+                        done += n;
                     }
                 }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                System.err.println("Error when saving the file " +
+                                   ((String) (this.torrent.name.get(i))));
+            } finally {
+                for (int j = 0; j < out.length; j++)
+                    try {
+                        if (out[j] != null)
+                            out[j].close();
+                    } catch (IOException ioe) {}
             }
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -339,18 +704,18 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * Check if the current download is complete
      * @return boolean
      */
-    public synchronized boolean isComplete() {
-        synchronized (this.isComplete) {
-            return (this.isComplete.cardinality() == this.nbPieces);
-        }
+    public boolean isComplete() {
+        return this.states.allComplete();
     }
 
     /**
      * Returns the number of pieces currently requested to peers
      * @return int
      */
-    public synchronized int cardinalityR() {
-        return this.isRequested.cardinality();
+    public int cardinalityR() {
+        return this.states.count(PieceStates.REQUESTED) +
+                this.states.count(PieceStates.DOWNLOADING) +
+                this.states.count(PieceStates.VERIFYING);
     }
 
     /**
@@ -358,9 +723,14 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param index The piece index
      * @return Piece The piece with the given index
      */
-    public synchronized Piece getPiece(int index) {
-        synchronized (this.pieceList) {
-            return this.pieceList[index];
+    public Piece getPiece(int index) {
+        this.lock.lock();
+        try {
+            synchronized (this.pieceList) {
+                return this.pieceList[index];
+            }
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -369,10 +739,8 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param piece The piece index
      * @return boolean
      */
-    public synchronized boolean isPieceComplete(int piece) {
-        synchronized (this.isComplete) {
-            return this.isComplete.get(piece);
-        }
+    public boolean isPieceComplete(int piece) {
+        return this.states.isComplete(piece);
     }
 
     /**
@@ -380,10 +748,8 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param piece The piece index
      * @return boolean
      */
-    public synchronized boolean isPieceRequested(int piece) {
-        synchronized (this.isRequested) {
-            return this.isRequested.get(piece);
-        }
+    public boolean isPieceRequested(int piece) {
+        return this.states.isActive(piece);
     }
 
     /**
@@ -391,9 +757,15 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param piece The index of the piece to be updated
      * @param is True if the piece is now complete, false otherwise
      */
-    public synchronized void setComplete(int piece, boolean is) {
-        synchronized (this.isComplete) {
-            this.isComplete.set(piece, is);
+    public void setComplete(int piece, boolean is) {
+        this.lock.lock();
+        try {
+            this.states.set(piece, is ? PieceStates.COMPLETE :
+                            PieceStates.MISSING);
+            if (is)
+                this.picker.remove(piece);
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -403,10 +775,13 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param is True if the piece is now requested, false otherwise
      */
 
-    public synchronized void setRequested(int piece, boolean is) {
-        synchronized (this.isRequested) {
-            this.isRequested.set(piece, is);
-        }
+    public void setRequested(int piece, boolean is) {
+        if (is)
+            this.states.compareAndSet(piece, PieceStates.MISSING,
+                                      PieceStates.REQUESTED);
+        else
+            this.states.compareAndSet(piece, PieceStates.REQUESTED,
+                                      PieceStates.MISSING);
     }
 
     /**
@@ -414,46 +789,112 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * Used only for pretty-printing.
      * @return String
      */
-    public synchronized String requestedBits() {
+    public String requestedBits() {
         String s = "";
-        synchronized (this.isRequested) {
-            for (int i = 0; i < this.nbPieces; i++)
-                s += this.isRequested.get(i) ? 1 : 0;
-        }
+        for (int i = 0; i < this.nbPieces; i++)
+            s += this.states.isActive(i) ? 1 : 0;
         return s;
     }
 
     /**
-     * Returns the index of the piece that could be downloaded by the peer in parameter
+     * Returns the index of the piece that could be downloaded by the peer in
+     * parameter. Pieces being downloaded by other peers and having blocks not
+     * requested yet are chosen first, so that they complete sooner. Otherwise,
+     * the rarest piece among the ones the peer has and that nobody downloads
+     * is chosen
      * @param id The id of the peer that wants to download
      * @return int The index of the piece to request
      */
-    private synchronized int choosePiece2Download(String id) {
-        synchronized (this.isComplete) {
-            int index = 0;
-            ArrayList<Integer> possible = new ArrayList<Integer>(this.nbPieces);
-            for (int i = 0; i < this.nbPieces; i++) {
-                if ((!this.isPieceRequested(i) ||
-                     (this.isComplete.cardinality() > this.nbPieces - 3)) &&
-                    //(this.isRequested.cardinality() == this.nbPieces)) &&
-                    (!this.isPieceComplete(i)) &&
-                    this.peerAvailabilies.get(id) != null) {
-
-                    if (this.peerAvailabilies.get(id).get(i))
-                        possible.add(i);
+    private int choosePiece2Download(String id) {
+        this.lock.lock();
+        try {
+            BitSet has = this.peerAvailabilies.get(id);
+            if (has == null)
+                return -1;
+            DownloadTask dt = this.task.get(id);
+            int index = -1;
+            for (int i = this.states.nextActive(0); i >= 0;
+                         i = this.states.nextActive(i + 1)) {
+                if (has.get(i) && !this.pieceList[i].isFullyRequested() &&
+                    this.states.get(i) != PieceStates.VERIFYING &&
+                    (dt == null || !dt.holdsPiece(i))) {
+                    index = i;
+                    break;
                 }
             }
-            //System.out.println(this.isRequested.cardinality()+" "+this.isComplete.cardinality()+" " + possible.size());
-            if (possible.size() > 0) {
-                Random r = new Random(System.currentTimeMillis());
-                index = possible.get(r.nextInt(possible.size()));
-                this.setRequested(index, true);
-                return (index);
+            if (index == -1 && this.bufferPool.isExhausted())
+                this.buffersExhausted = true;
+            else if (index == -1) {
+                index = this.picker.pick(has, this.states);
+                if (index != -1)
+                    this.states.compareAndSet(index, PieceStates.MISSING,
+                                              PieceStates.REQUESTED);
             }
-            return -1;
+            /**
+             * Endgame mode: all the missing pieces have been requested.
+             * Request them from this peer too, the blocks received first
+             * being cancelled on the other peers. Pieces being verified have
+             * all their blocks already
+             */
+            if (index == -1 && this.isEndgame()) {
+                ArrayList<Integer> possible = new ArrayList<Integer>();
+                for (int i = this.states.nextActive(0); i >= 0;
+                             i = this.states.nextActive(i + 1)) {
+                    if (has.get(i) &&
+                        this.states.get(i) != PieceStates.VERIFYING &&
+                        (dt == null || !dt.holdsPiece(i)))
+                        possible.add(i);
+                }
+                if (possible.size() > 0)
+                    index = possible.get(new Random().nextInt(possible.size()));
+            }
+            return index;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns true if the download is in endgame mode, i.e. if all the missing
+     * pieces have been assigned to tasks and all their blocks requested
+     * @return boolean
+     */
+    public boolean isEndgame() {
+        if (!this.endgame && this.states.count(PieceStates.MISSING) == 0 &&
+            this.states.count(PieceStates.CHECKING) == 0 &&
+            !this.states.allComplete()) {
+            for (int i = this.states.nextActive(0); i >= 0;
+                         i = this.states.nextActive(i + 1))
+                if (!this.pieceList[i].isFullyRequested())
+                    return false;
+            this.endgame = true;
         }
+        return this.endgame;
     }
 
+    /**
+     * Received when a task has received a block. The piece is marked as being
+     * downloaded without locking the manager. In endgame mode, the requests
+     * for this block sent to other peers are cancelled
+     * @param peerID String
+     * @param piece int
+     * @param begin int
+     */
+    public void blockReceived(String peerID, int piece, int begin) {
+        this.states.compareAndSet(piece, PieceStates.REQUESTED,
+                                  PieceStates.DOWNLOADING);
+        if (!this.endgame)
+            return;
+        this.lock.lock();
+        try {
+            for (Map.Entry<String, DownloadTask> e : this.task.entrySet())
+                if (!e.getKey().equals(peerID))
+                    e.getValue().cancelRequest(piece, begin);
+        } finally {
+            this.lock.unlock();
+        }
+    }
 
     /**
      * Removes a task and peer after the task sends a completion message.
@@ -462,24 +903,31 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param id Task idendity
      * @param reason Reason of the completion
      */
-    public synchronized void taskCompleted(String id, int reason) {
-        switch (reason) {
-        case DownloadTask.CONNECTION_REFUSED:
+    public void taskCompleted(String id, int reason) {
+        this.lock.lock();
+        try {
+            switch (reason) {
+            case DownloadTask.CONNECTION_REFUSED:
 
-            //System.err.println("Connection refused by host " + id);
-            break;
-        case DownloadTask.MALFORMED_MESSAGE:
+                //System.err.println("Connection refused by host " + id);
+                break;
+            case DownloadTask.MALFORMED_MESSAGE:
 
-            //System.err.println("Malformed message from " + id + ". Task ended...");
-            break;
-        case DownloadTask.UNKNOWN_HOST:
-            //System.err.println("Connection could not be established to " + id + ". Host unknown...");
+                //System.err.println("Malformed message from " + id + ". Task ended...");
+                break;
+            case DownloadTask.UNKNOWN_HOST:
+                //System.err.println("Connection could not be established to " + id + ". Host unknown...");
 
+            }
+            BitSet has = this.peerAvailabilies.remove(id);
+            if (has != null)
+                this.picker.removePeer(has);
+            this.task.remove(id);
+            this.peerList.remove(id);
+            //System.err.flush();
+        } finally {
+            this.lock.unlock();
         }
-        this.peerAvailabilies.remove(id);
-        this.task.remove(id);
-        this.peerList.remove(id);
-        //System.err.flush();
     }
 
     /**
@@ -492,55 +940,131 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param i int
      * @param complete boolean
      */
-    public synchronized void pieceCompleted(String peerID, int i,
-                                            boolean complete) {
-        synchronized (this.isRequested) {
-            this.isRequested.clear(i);
-        }
-        synchronized (this.isComplete) {
-            if (complete && !this.isPieceComplete(i)) {
-                pu.updateParameters(this.torrent.pieceLength, 0, "");
-                this.isComplete.set(i, complete);
-                float totaldl = (float) (((float) (100.0)) *
-                                         ((float) (this.isComplete.cardinality())) /
-                                         ((float) (this.nbPieces)));
-
-                for (Iterator it = this.task.keySet().iterator();
-                                   it.hasNext(); )
-                    try {
-                        this.task.get(it.next()).ms.addMessageToQueue(
-                                new Message_PP(PeerProtocol.HAVE,
-                                               Utils.intToByteArray(i), 1));
-                    } catch (NullPointerException npe) {}
-//                System.out.println("Piece completed by " + peerID +
-//                                   " : " + i + " (Total dl = " + totaldl +
-//                                   "% )");
-                this.savePiece(i);
-                this.getPieceBlock(i, 0, 15000);
+    public void pieceCompleted(final String peerID, final int i,
+                               boolean complete) {
+        /**
+         * Only the task that claimed the piece for verification gets here with
+         * it complete, so it is written on a disk thread while the tasks go
+         * on. It is saved before being marked as complete, so that the readers
+         * never serve it from the files before it is written. This may run on
+         * a thread driving connections, so it never waits for the disk: when
+         * the write queue of this download is full, the write is parked until
+         * a queued write is done, and no new piece is assigned meanwhile
+         */
+        if (!complete || this.isPieceComplete(i)) {
+            this.pieceSaved(peerID, i, false);
+            return;
+        }
+        Runnable job = new Runnable() {
+            public void run() {
+                pieceSaved(peerID, i, savePiece(i));
+                submitParkedWrites();
+            }
+        };
+        synchronized (this.parkedWrites) {
+            if (this.parkedWrites.isEmpty() &&
+                this.disk.trySubmit(this, DiskIO.WRITE, job))
+                return;
+            this.parkedWrites.add(job);
+        }
+    }
+
+    /**
+     * Queues the parked writes while there is room in the write queue. Once
+     * all are queued, the idle tasks are woken up to get new pieces
+     */
+    private void submitParkedWrites() {
+        synchronized (this.parkedWrites) {
+            if (this.parkedWrites.isEmpty())
+                return;
+            while (!this.parkedWrites.isEmpty() &&
+                   this.disk.trySubmit(this, DiskIO.WRITE,
+                                       this.parkedWrites.getFirst()))
+                this.parkedWrites.removeFirst();
+            if (!this.parkedWrites.isEmpty())
+                return;
+        }
+        this.lock.lock();
+        try {
+            for (DownloadTask dt : new ArrayList<DownloadTask>(this.task.values()))
+                dt.wakeUp();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if verified pieces are waiting for room in the write queue
+     * @return boolean
+     */
+    public boolean isDiskBusy() {
+        synchronized (this.parkedWrites) {
+            return !this.parkedWrites.isEmpty();
+        }
+    }
+
+    /**
+     * Marks a piece as complete once it has been saved, and sends a 'HAVE'
+     * message to all connected peers. The piece is left as it is if its write
+     * has already failed, since it is being downloaded again. If tasks could
+     * not start a piece for lack of buffers, they are woken up once one is free
+     * @param peerID The peer the piece was downloaded from
+     * @param i int
+     * @param save True if the piece has been saved
+     */
+    private void pieceSaved(String peerID, int i, boolean save) {
+        this.lock.lock();
+        try {
+            if (save && this.states.compareAndSet(i, PieceStates.VERIFYING,
+                                                  PieceStates.COMPLETE)) {
+                this.left -= this.pieceList[i].getLength();
+                pu.updateParameters(this.pieceList[i].getLength(), 0, "");
+                this.picker.remove(i);
+                this.lost.clear(i);
+                float totaldl = this.getCompleted();
+
+                for (DownloadTask dt : this.task.values())
+                    dt.sendHave(i);
+                if (this.endgame)
+                    for (Map.Entry<String, DownloadTask> e : this.task.entrySet())
+                        if (!e.getKey().equals(peerID))
+                            e.getValue().cancelPiece(i);
+    //                System.out.println("Piece completed by " + peerID +
+    //                                   " : " + i + " (Total dl = " + totaldl +
+    //                                   "% )");
 
             } else {
 
                 //this.pieceList[i].data = new byte[0];
             }
+            // The buffer of the piece has been given back
+            if (this.buffersExhausted && !this.bufferPool.isExhausted()) {
+                this.buffersExhausted = false;
+                for (DownloadTask dt :
+                     new ArrayList<DownloadTask>(this.task.values()))
+                    dt.wakeUp();
+            }
 
-            if (this.isComplete.cardinality() == this.nbPieces) {
+            if (this.isComplete()) {
                 //System.out.println("Download completed, saving file...");
                 //this.save();
                 //this.task.clear();
                 //this.end();
-//                System.out.println("Task completed");
-                this.notify();
+    //            System.out.println("Task completed");
             }
+        } finally {
+            this.lock.unlock();
         }
     }
 
     /**
-     * Set the status of the piece to requested or not
+     * Received when all the blocks of a piece have been requested by a task,
+     * or when its requests have been released. Nothing needs to be updated, as
+     * the pieces keep track of their requested blocks themselves
      * @param i int
      * @param requested boolean
      */
-    public synchronized void pieceRequested(int i, boolean requested) {
-        this.isRequested.set(i, requested);
+    public void pieceRequested(int i, boolean requested) {
     }
 
     /**
@@ -551,88 +1075,99 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * optimisticUnchoke method, which unchoke a peer no matter its download rate,
      * in a try to find a better source
      */
-    private synchronized void unchokePeers() {
-        synchronized (this.task) {
-            int nbNotInterested = 0;
-            int nbDownloaders = 0;
-            int nbChoked = 0;
-            this.unchoken.clear();
-            List<Peer> l = new LinkedList<Peer>(this.peerList.values());
-            if (!this.isComplete())
-                Collections.sort(l, new DLRateComparator());
-            else
-                Collections.sort(l, new ULRateComparator());
+    private void unchokePeers() {
+        this.lock.lock();
+        try {
+            synchronized (this.task) {
+                int nbNotInterested = 0;
+                int nbDownloaders = 0;
+                int nbChoked = 0;
+                this.unchoken.clear();
+                List<Peer> l = new LinkedList<Peer>(this.peerList.values());
+                if (!this.isComplete())
+                    Collections.sort(l, new DLRateComparator());
+                else
+                    Collections.sort(l, new ULRateComparator());
+
+                for (Iterator it = l.iterator(); it.hasNext(); ) {
+                    Peer p = (Peer) it.next();
+                    if (p.getDLRate(false) > 0)
+                        p.getDLRate(true);
+    //                    System.out.println(p + " rate: " +
+    //                                       p.getDLRate(true) / (1024 * 10) +
+    //                                       "ko/s");
 
-            for (Iterator it = l.iterator(); it.hasNext(); ) {
-                Peer p = (Peer) it.next();
-                if (p.getDLRate(false) > 0)
-                    p.getDLRate(true);
-//                    System.out.println(p + " rate: " +
-//                                       p.getDLRate(true) / (1024 * 10) +
-//                                       "ko/s");
-
-                DownloadTask dt = this.task.get(p.toString());
-                if (nbDownloaders < 5 && dt != null) {
-                    if (!p.isInterested()) {
-                        this.unchoken.put(p.toString(), p);
-                        if (p.isChoked())
-                            dt.ms.addMessageToQueue(
+                    DownloadTask dt = this.task.get(p.toString());
+                    if (nbDownloaders < 5 && dt != null) {
+                        if (!p.isInterested()) {
+                            this.unchoken.put(p.toString(), p);
+                            if (p.isChoked()) {
+                                p.setChoked(false);
+                                dt.addMessageToQueue(
+                                        new Message_PP(PeerProtocol.UNCHOKE));
+                            }
+
+                            while (this.unchokeList.remove(p))
+                                ;
+                            nbNotInterested++;
+                        } else if (p.isChoked()) {
+                            this.unchoken.put(p.toString(), p);
+                            p.setChoked(false);
+                            dt.addMessageToQueue(
                                     new Message_PP(PeerProtocol.UNCHOKE));
-                        p.setChoked(false);
-
-                        while (this.unchokeList.remove(p))
-                            ;
-                        nbNotInterested++;
-                    } else if (p.isChoked()) {
-                        this.unchoken.put(p.toString(), p);
-                        dt.ms.addMessageToQueue(
-                                new Message_PP(PeerProtocol.UNCHOKE));
-                        p.setChoked(false);
-                        while (this.unchokeList.remove(p))
-                            ;
-                        nbDownloaders++;
-                    }
+                            while (this.unchokeList.remove(p))
+                                ;
+                            nbDownloaders++;
+                        }
 
-                } else {
-                    if (!p.isChoked()) {
-                        dt.ms.addMessageToQueue(
-                                new Message_PP(PeerProtocol.CHOKE));
-                        p.setChoked(true);
+                    } else {
+                        if (!p.isChoked()) {
+                            p.setChoked(true);
+                            dt.addMessageToQueue(
+                                    new Message_PP(PeerProtocol.CHOKE));
+                        }
+                        if (!this.unchokeList.contains(p))
+                            this.unchokeList.add(p);
+                        nbChoked++;
                     }
-                    if (!this.unchokeList.contains(p))
-                        this.unchokeList.add(p);
-                    nbChoked++;
+                    p = null;
+                    dt = null;
                 }
-                p = null;
-                dt = null;
             }
+            this.lastUnchoking = System.currentTimeMillis();
+    //        if (this.optimisticUnchoke-- == 0) {
+    //            this.optimisticUnchoke();
+    //            this.optimisticUnchoke = 3;
+    //        }
+        } finally {
+            this.lock.unlock();
         }
-        this.lastUnchoking = System.currentTimeMillis();
-//        if (this.optimisticUnchoke-- == 0) {
-//            this.optimisticUnchoke();
-//            this.optimisticUnchoke = 3;
-//        }
     }
 
-    private synchronized void optimisticUnchoke() {
-        if (!this.unchokeList.isEmpty()) {
-            Peer p = null;
-            do {
-                p = (Peer)this.unchokeList.remove(0);
-                synchronized (this.task) {
-                    DownloadTask dt = this.task.get(p.toString());
-                    if (dt != null) {
-                        dt.ms.addMessageToQueue(new Message_PP(PeerProtocol.
-                                UNCHOKE));
-                        p.setChoked(false);
-                        this.unchoken.put(p.toString(), p);
-//                        System.out.println(p + " optimistically unchoken...");
-                    } else
-                        p = null;
-                    dt = null;
-                }
-            } while ((p == null) && (!this.unchokeList.isEmpty()));
-            p = null;
+    private void optimisticUnchoke() {
+        this.lock.lock();
+        try {
+            if (!this.unchokeList.isEmpty()) {
+                Peer p = null;
+                do {
+                    p = (Peer)this.unchokeList.remove(0);
+                    synchronized (this.task) {
+                        DownloadTask dt = this.task.get(p.toString());
+                        if (dt != null) {
+                            p.setChoked(false);
+                            dt.addMessageToQueue(new Message_PP(PeerProtocol.
+                                    UNCHOKE));
+                            this.unchoken.put(p.toString(), p);
+    //                        System.out.println(p + " optimistically unchoken...");
+                        } else
+                            p = null;
+                        dt = null;
+                    }
+                } while ((p == null) && (!this.unchokeList.isEmpty()));
+                p = null;
+            }
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -642,13 +1177,21 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * request the piece
      * @param peerID String
      */
-    public synchronized void peerReady(String peerID) {
-        if (System.currentTimeMillis() - this.lastUnchoking > 10000)
-            this.unchokePeers();
+    public void peerReady(String peerID) {
+        this.lock.lock();
+        try {
+            if (System.currentTimeMillis() - this.lastUnchoking > 10000)
+                this.unchokePeers();
 
-        int piece2request = this.choosePiece2Download(peerID);
-        if (piece2request != -1)
-            this.task.get(peerID).requestPiece(this.pieceList[piece2request]);
+            DownloadTask dt = this.task.get(peerID);
+            if (dt == null || !dt.needsPiece() || this.isDiskBusy())
+                return;
+            int piece2request = this.choosePiece2Download(peerID);
+            if (piece2request != -1)
+                dt.requestPiece(this.pieceList[piece2request], this.endgame);
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
@@ -660,63 +1203,196 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param begin int
      * @param length int
      */
-    public synchronized void peerRequest(String peerID, int piece, int begin,
-                                         int length) {
-        if (this.isPieceComplete(piece)) {
-            DownloadTask dt = this.task.get(peerID);
-            if (dt != null) {
-                dt.ms.addMessageToQueue(new Message_PP(
-                        PeerProtocol.PIECE,
-                        Utils.concat(Utils.intToByteArray(piece),
-                                     Utils.concat(Utils.intToByteArray(begin),
-                                                  this.getPieceBlock(piece,
-                        begin,
-                        length)))));
-                dt.peer.setULRate(length);
+    public void peerRequest(String peerID, int piece, int begin,
+                            int length) {
+        DownloadTask dt = null;
+        this.lock.lock();
+        try {
+            // Announced before its write failed: the peer is not at fault
+            if (piece >= 0 && piece < this.nbPieces && this.lost.get(piece))
+                return;
+            if (piece >= 0 && piece < this.nbPieces &&
+                this.isPieceComplete(piece) && begin >= 0 && length > 0 &&
+                length <= Constants.MAX_MESSAGE_LENGTH &&
+                begin <= this.pieceList[piece].getLength() - length) {
+                dt = this.task.get(peerID);
+                if (dt != null)
+                    dt.peer.setULRate(length);
+                this.pu.updateParameters(0, length, "");
+            } else {
+                try {
+                    this.task.get(peerID).end();
+                } catch (Exception e) {}
+                this.task.remove(peerID);
+                this.peerList.remove(peerID);
+                this.unchoken.remove(peerID);
             }
-            dt = null;
-            this.pu.updateParameters(0, length, "");
-        } else {
-            try {
-                this.task.get(peerID).end();
-            } catch (Exception e) {}
-            this.task.remove(peerID);
-            this.peerList.remove(peerID);
-            this.unchoken.remove(peerID);
+
+        } finally {
+            this.lock.unlock();
+        }
+        if (dt != null)
+            this.queuePieceMessage(dt, piece, begin, length);
+    }
+
+    /**
+     * Queues the PIECE message for a block requested by a task. The message is
+     * created without the manager lock. If the piece has to be read into the
+     * read cache, it is read on a disk thread, or, when the read queue of this
+     * download is full, the block is sent straight from the files
+     * @param dt DownloadTask
+     * @param piece int
+     * @param begin int
+     * @param length int
+     */
+    private void queuePieceMessage(final DownloadTask dt, final int piece,
+                                   final int begin, final int length) {
+        if (this.readCache == null || this.readCache.contains(piece) ||
+            this.writeCache.get(piece) != null) {
+            dt.addMessageToQueue(this.getPieceMessage(piece, begin, length));
+            return;
         }
+        if (!this.disk.trySubmit(this, DiskIO.READ, new Runnable() {
+            public void run() {
+                dt.addMessageToQueue(getPieceMessage(piece, begin, length));
+            }
+        }))
+            dt.addMessageToQueue(this.getFileMessage(piece, begin, length));
+    }
 
+    /**
+     * Load piece data from the existing files. If the piece cannot be read,
+     * the data returned is empty
+     * @param piece int
+     * @return byte[]
+     */
+    public byte[] getPieceFromFiles(int piece) {
+        try {
+            return this.readPiece(piece);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return new byte[this.pieceList[piece].getLength()];
+        }
     }
 
     /**
-     * Load piece data from the existing files
+     * Reads the data of a piece, from the write-back cache if it is not
+     * written yet, or from the files
      * @param piece int
      * @return byte[]
+     * @throws IOException If a part of the piece could not be read
      */
-    public synchronized byte[] getPieceFromFiles(int piece) {
+    private byte[] readPiece(int piece) throws IOException {
         byte[] data = new byte[this.pieceList[piece].getLength()];
+        ByteBuffer pending = this.writeCache.get(piece);
+        if (pending != null) {
+            pending.get(data);
+            return data;
+        }
         int remainingData = data.length;
-        for (Iterator it = this.pieceList[piece].getFileAndOffset().keySet().
-                           iterator(); it.hasNext(); ) {
+        for (Map.Entry<Integer, Long> e :
+             this.pieceList[piece].getFileAndOffset().entrySet()) {
+            int file = e.getKey().intValue();
+            long position = e.getValue().longValue();
+            long remaining = ((Long) this.torrent.length.get(file)).longValue() -
+                             position;
+            ByteBuffer b = ByteBuffer.wrap(data, data.length - remainingData,
+                    (int) Math.min(remaining, remainingData));
+            remainingData -= b.remaining();
+            this.readFully(file, position, b);
+        }
+        return data;
+    }
+
+    /**
+     * Reads from a file until the buffer is full
+     * @param file int
+     * @param position long
+     * @param b ByteBuffer
+     * @throws IOException If the end of the file is reached before
+     */
+    private void readFully(int file, long position, ByteBuffer b) throws
+            IOException {
+        while (b.hasRemaining()) {
+            int n = this.storage.read(file, position, b);
+            if (n < 0)
+                throw new EOFException("File " + file + " too short");
+            position += n;
+        }
+    }
+
+    /**
+     * Creates the PIECE message for a piece block. The block is taken from the
+     * write-back cache if the piece is not written yet, or from the read cache
+     * if there is one. Otherwise, the block is not read now: it is sent
+     * straight from the file(s) to the remote peer when the message is written
+     * @param piece int
+     * @param begin int
+     * @param length int
+     * @return Message_Piece
+     */
+    public Message_Piece getPieceMessage(int piece, int begin, int length) {
+        if (this.checker != null)
+            this.checker.liveIO();
+        ByteBuffer data = this.writeCache.get(piece);
+        if (data == null) {
             try {
-                Integer file = (Integer) (it.next());
-                int remaining = ((Integer)this.torrent.length.get(file.intValue())).
-                                intValue()
-                                -
-                                ((Integer) (this.pieceList[piece].
-                                            getFileAndOffset().
-                                            get(file))).intValue();
-                this.output_files[file.intValue()].seek(((Integer)
-                        (this.pieceList[piece].getFileAndOffset().get(file))).
-                        intValue());
-                this.output_files[file.intValue()].read(data,
-                        data.length - remainingData,
-                        (remaining < remainingData) ? remaining : remainingData);
-                remainingData -= remaining;
+                data = this.getCachedPiece(piece);
             } catch (IOException ioe) {
-                System.err.println(ioe.getMessage());
+                System.err.println("Could not read piece " + piece + ": " +
+                                   ioe.getMessage());
             }
         }
-        return data;
+        if (data != null) {
+            data.position(begin);
+            data.limit(begin + length);
+            return new Message_Piece(piece, begin, data);
+        }
+        return this.getFileMessage(piece, begin, length);
+    }
+
+    /**
+     * Creates the PIECE message for a piece block, sent straight from the
+     * file(s) to the remote peer, possibly from several files if the block
+     * spans their boundary
+     * @param piece int
+     * @param begin int
+     * @param length int
+     * @return Message_Piece
+     */
+    private Message_Piece getFileMessage(int piece, int begin, int length) {
+        TreeMap<Integer, Long> fo = this.pieceList[piece].getFileAndOffset();
+        ArrayList<Integer> files = new ArrayList<Integer>(fo.size());
+        ArrayList<Long> positions = new ArrayList<Long>(fo.size());
+        ArrayList<Long> counts = new ArrayList<Long>(fo.size());
+        long skip = begin;
+        long remaining = length;
+        for (Iterator<Integer> it = fo.keySet().iterator();
+                                   it.hasNext() && remaining > 0; ) {
+            Integer file = it.next();
+            long offset = fo.get(file).longValue();
+            long inFile = ((Long) this.torrent.length.get(file.intValue())).
+                          longValue() - offset;
+            if (skip >= inFile) {
+                skip -= inFile;
+                continue;
+            }
+            long count = Math.min(inFile - skip, remaining);
+            files.add(file);
+            positions.add(offset + skip);
+            counts.add(count);
+            remaining -= count;
+            skip = 0;
+        }
+        int[] f = new int[files.size()];
+        long[] p = new long[files.size()];
+        long[] c = new long[files.size()];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = files.get(i).intValue();
+            p[i] = positions.get(i).longValue();
+            c[i] = counts.get(i).longValue();
+        }
+        return new Message_Piece(piece, begin, this.storage, f, p, c);
     }
 
     /**
@@ -726,8 +1402,82 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param length int
      * @return byte[]
      */
-    public synchronized byte[] getPieceBlock(int piece, int begin, int length) {
-        return Utils.subArray(this.getPieceFromFiles(piece), begin, length);
+    public byte[] getPieceBlock(int piece, int begin, int length) {
+        ByteBuffer data = null;
+        try {
+            data = this.getCachedPiece(piece);
+        } catch (IOException ioe) {
+            System.err.println("Could not read piece " + piece + ": " +
+                               ioe.getMessage());
+        }
+        if (data == null)
+            return Utils.subArray(this.getPieceFromFiles(piece), begin, length);
+        byte[] block = new byte[length];
+        data.position(begin);
+        data.get(block);
+        return block;
+    }
+
+    /**
+     * Returns the data of a piece from the read cache, reading the whole
+     * piece from the files into the cache if it is not there yet. Nothing is
+     * cached if the piece cannot be read
+     * @param piece int
+     * @return ByteBuffer null if there is no read cache
+     * @throws IOException If the piece could not be read
+     */
+    private ByteBuffer getCachedPiece(int piece) throws IOException {
+        if (this.readCache == null)
+            return null;
+        ByteBuffer data = this.readCache.get(piece);
+        if (data == null) {
+            data = ByteBuffer.wrap(this.readPiece(piece));
+            this.readCache.put(piece, data);
+            data = data.asReadOnlyBuffer();
+        }
+        return data;
+    }
+
+    /**
+     * Returns the cache of the pieces read for the uploads
+     * @return PieceCache null if the read cache is disabled
+     */
+    public PieceCache getReadCache() {
+        return this.readCache;
+    }
+
+    /**
+     * Returns the cache of the verified pieces waiting to be written
+     * @return WriteBackCache
+     */
+    public WriteBackCache getWriteCache() {
+        return this.writeCache;
+    }
+
+    /**
+     * Returns the percentage of the files already allocated on the disk
+     * @return float
+     */
+    public float getAllocationProgress() {
+        if (this.allocator == null || this.length == 0)
+            return 100;
+        return 100f * this.allocator.getAllocated() / this.length;
+    }
+
+    /**
+     * Returns true while the files are being allocated in the background
+     * @return boolean
+     */
+    public boolean isAllocating() {
+        return this.allocator != null && this.allocator.isAllocating();
+    }
+
+    /**
+     * Returns the pool of disk threads reading and writing the pieces
+     * @return DiskIO
+     */
+    public DiskIO getDiskIO() {
+        return this.disk;
     }
 
     /**
@@ -735,36 +1485,89 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param peerID String
      * @param has BitSet
      */
-    public synchronized void peerAvailability(String peerID, BitSet has) {
-        this.peerAvailabilies.put(peerID, has);
-        BitSet interest = (BitSet) (has.clone());
-        interest.andNot(this.isComplete);
-        DownloadTask dt = this.task.get(peerID);
-        if (dt != null) {
-            if (interest.cardinality() > 0 &&
+    public void peerAvailability(String peerID, BitSet has) {
+        this.lock.lock();
+        try {
+            BitSet copy = (BitSet) has.clone();
+            if (copy.length() > this.nbPieces)
+                copy.clear(this.nbPieces, copy.length());
+            BitSet old = this.peerAvailabilies.put(peerID, copy);
+            if (old != null)
+                this.picker.removePeer(old);
+            this.picker.addPeer(copy);
+            boolean interest = false;
+            for (int i = copy.nextSetBit(0); i >= 0 && !interest;
+                         i = copy.nextSetBit(i + 1))
+                interest = !this.states.isComplete(i);
+            DownloadTask dt = this.task.get(peerID);
+            if (dt != null) {
+                if (interest && !dt.peer.isInteresting()) {
+                    dt.addMessageToQueue(new Message_PP(
+                            PeerProtocol.INTERESTED, 2));
+                    dt.peer.setInteresting(true);
+                }
+            }
+            dt = null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Received when a peer announces a new piece. Updates the availability of
+     * the piece and, if we need it, tells the peer we are interested
+     * @param peerID String
+     * @param piece int
+     */
+    public void peerHave(String peerID, int piece) {
+        this.lock.lock();
+        try {
+            BitSet has = this.peerAvailabilies.get(peerID);
+            if (piece < 0 || piece >= this.nbPieces)
+                return;
+            if (has == null) {
+                has = new BitSet(this.nbPieces);
+                this.peerAvailabilies.put(peerID, has);
+            }
+            if (has.get(piece))
+                return;
+            has.set(piece);
+            this.picker.increment(piece);
+            DownloadTask dt = this.task.get(peerID);
+            if (dt != null && !this.isPieceComplete(piece) &&
                 !dt.peer.isInteresting()) {
-                dt.ms.addMessageToQueue(new Message_PP(
-                        PeerProtocol.INTERESTED, 2));
+                dt.addMessageToQueue(new Message_PP(PeerProtocol.INTERESTED, 2));
                 dt.peer.setInteresting(true);
             }
+        } finally {
+            this.lock.unlock();
         }
-        dt = null;
     }
 
-    public synchronized void connect(Peer p) {
-        DownloadTask dt = new DownloadTask(p,
-                                           this.torrent.info_hash_as_binary,
-                                           this.clientID, true,
-                                           this.getBitField());
-        dt.addDTListener(this);
-        dt.start();
+    public void connect(Peer p) {
+        this.lock.lock();
+        try {
+            DownloadTask dt = new DownloadTask(p,
+                                               this.torrent.info_hash_as_binary,
+                                               this.clientID, true,
+                                               this.getBitField());
+            dt.addDTListener(this);
+            this.startTask(dt);
+        } finally {
+            this.lock.unlock();
+        }
     }
 
-    public synchronized void disconnect(Peer p) {
-        DownloadTask dt = task.remove(p.toString());
-        if (dt != null) {
-            dt.end();
-            dt = null;
+    public void disconnect(Peer p) {
+        this.lock.lock();
+        try {
+            DownloadTask dt = task.remove(p.toString());
+            if (dt != null) {
+                dt.end();
+                dt = null;
+            }
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -773,22 +1576,27 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * the peer list. If not, then add them and create a new task for them
      * @param list LinkedHashMap
      */
-    public synchronized void updatePeerList(LinkedHashMap list) {
-        //this.lastUnchoking = System.currentTimeMillis();
-        synchronized (this.task) {
-            //this.peerList.putAll(list);
-            Set keyset = list.keySet();
-            for (Iterator i = keyset.iterator(); i.hasNext(); ) {
-                String key = (String) i.next();
-                if (!this.task.containsKey(key)) {
-                    Peer p = (Peer) list.get(key);
-                    this.peerList.put(p.toString(), p);
-                    this.connect(p);
+    public void updatePeerList(LinkedHashMap list) {
+        this.lock.lock();
+        try {
+            //this.lastUnchoking = System.currentTimeMillis();
+            synchronized (this.task) {
+                //this.peerList.putAll(list);
+                Set keyset = list.keySet();
+                for (Iterator i = keyset.iterator(); i.hasNext(); ) {
+                    String key = (String) i.next();
+                    if (!this.task.containsKey(key)) {
+                        Peer p = (Peer) list.get(key);
+                        this.peerList.put(p.toString(), p);
+                        this.connect(p);
+                    }
                 }
             }
+    //        System.out.println("Peer List updated from tracker with " + list.size() +
+    //                           " peers");
+        } finally {
+            this.lock.unlock();
         }
-//        System.out.println("Peer List updated from tracker with " + list.size() +
-//                           " peers");
     }
 
     /**
@@ -806,9 +1614,14 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * @param id String
      * @param dt DownloadTask
      */
-    public synchronized void addActiveTask(String id, DownloadTask dt) {
-        synchronized (this.task) {
-            this.task.put(id, dt);
+    public void addActiveTask(String id, DownloadTask dt) {
+        this.lock.lock();
+        try {
+            synchronized (this.task) {
+                this.task.put(id, dt);
+            }
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -817,41 +1630,40 @@ public class DownloadManager implements DTListener, PeerUpdateListener,
      * registered in the peer list, and if not, create a new DownloadTask for it
      * @param s Socket
      */
-    public synchronized void connectionAccepted(Socket s) {
-        synchronized (this.task) {
-
-            String id = s.getInetAddress().getHostAddress() +
-                        ":" + s.getPort();
-            if (!this.task.containsKey(id)) {
-                DownloadTask dt = new DownloadTask(null,
-                        this.torrent.info_hash_as_binary,
-                        this.clientID, false, this.getBitField(), s);
-                dt.addDTListener(this);
-                this.peerList.put(dt.getPeer().toString(), dt.getPeer());
-                this.task.put(dt.getPeer().toString(), dt);
-                dt.start();
+    public void connectionAccepted(Socket s) {
+        this.lock.lock();
+        try {
+            synchronized (this.task) {
+
+                String id = s.getInetAddress().getHostAddress() +
+                            ":" + s.getPort();
+                if (!this.task.containsKey(id)) {
+                    DownloadTask dt = new DownloadTask(null,
+                            this.torrent.info_hash_as_binary,
+                            this.clientID, false, this.getBitField(), s);
+                    dt.addDTListener(this);
+                    this.peerList.put(dt.getPeer().toString(), dt.getPeer());
+                    this.task.put(dt.getPeer().toString(), dt);
+                    this.startTask(dt);
+                }
             }
+        } finally {
+            this.lock.unlock();
         }
     }
 
     /**
-     * Compute the bitfield byte array from the isComplete BitSet
+     * Compute the bitfield byte array from the piece states
      * @return byte[]
      */
     public byte[] getBitField() {
-        int l = (int) Math.ceil((double)this.nbPieces / 8.0);
-        byte[] bitfield = new byte[l];
-        for (int i = 0; i < this.nbPieces; i++)
-            if (this.isComplete.get(i)) {
-                bitfield[i / 8] |= 1 << (7 - i % 8);
-            }
-        return bitfield;
+        return this.states.getBitField();
     }
 
     public float getCompleted() {
         try {
-            return (float) (((float) (100.0)) * ((float)
-                                                 (this.isComplete.cardinality())) /
+            return (float) (((float) (100.0)) *
+                            ((float) (this.states.completed())) /
                             ((float) (this.nbPieces)));
         } catch (Exception e) {
             return 0.00f;
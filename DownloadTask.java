@@ -40,13 +40,20 @@ package jBittorrentAPI;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.swing.event.EventListenerList;
 
 /**
- * Class representing a task that downloads pieces from a remote peer
- *
+ * Class representing a task that downloads pieces from a remote peer.
+ * The task state is guarded by a ReentrantLock rather than the object monitor,
+ * so that the task, its sender and its receiver can run on virtual threads
+ * without pinning their carrier while waiting.
  */
-public class DownloadTask extends Thread implements IncomingListener,
+public class DownloadTask implements Runnable, IncomingListener,
         OutgoingListener {
 
     private static final int IDLE = 0;
@@ -77,7 +84,16 @@ public class DownloadTask extends Thread implements IncomingListener,
     private boolean isUploading = false;
 
     private Piece downloadPiece = null;
-    private int offset = 0;
+    private boolean endgame = false;
+    private final LinkedList<Piece> assignedPieces = new LinkedList<Piece>();
+    private final TreeMap<Integer, Piece> pieces = new TreeMap<Integer, Piece>();
+    private final ConcurrentLinkedQueue<BlockRequest> cancelledBlocks =
+            new ConcurrentLinkedQueue<BlockRequest>();
+    private final ConcurrentLinkedQueue<Integer> cancelledPieces =
+            new ConcurrentLinkedQueue<Integer>();
+    private final ConcurrentLinkedQueue<Integer> haves =
+            new ConcurrentLinkedQueue<Integer>();
+    private volatile boolean bitfieldSent = false;
 
     private final EventListenerList listeners = new EventListenerList();
 
@@ -87,6 +103,7 @@ public class DownloadTask extends Thread implements IncomingListener,
 
     public MessageSender ms = null;
     public MessageReceiver mr = null;
+    public NIOConnection nc = null;
 
     private long downloaded = 0;
     private long uploaded = 0;
@@ -94,7 +111,12 @@ public class DownloadTask extends Thread implements IncomingListener,
     private long updateTime = 0;
     private long lmrt = 0;
 
-    private LinkedList<Integer> pendingRequest;
+    private LinkedList<BlockRequest> pendingRequest;
+    private final RequestPipeline pipeline = new RequestPipeline();
+    private volatile PieceStates states = null;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ended = lock.newCondition();
 
     /**
      * Start the downloading process from the remote peer in parameter
@@ -107,7 +129,7 @@ public class DownloadTask extends Thread implements IncomingListener,
      */
     public DownloadTask(Peer peer, byte[] fileID, byte[] myID, boolean init, byte[] bitfield,
                         Socket s) {
-        this.pendingRequest = new LinkedList<Integer>();
+        this.pendingRequest = new LinkedList<BlockRequest>();
         this.fileID = fileID;
         this.myID = myID;
         this.initiate = init;
@@ -162,14 +184,21 @@ public class DownloadTask extends Thread implements IncomingListener,
      */
     public void initConnection() throws UnknownHostException, IOException {
         if (this.peerConnection == null && !this.peer.isConnected()) {
-            this.peerConnection = new Socket(this.peer.getIP(),
-                                             this.peer.getPort());
+            InetSocketAddress address = new InetSocketAddress(this.peer.getIP(),
+                    this.peer.getPort());
+            if (address.isUnresolved())
+                throw new UnknownHostException(this.peer.getIP());
+            this.peerConnection = SocketChannel.open(address).socket();
             this.os = this.peerConnection.getOutputStream();
             this.is = this.peerConnection.getInputStream();
             this.peer.setConnected(true);
         }
 
-        this.ms = new MessageSender(this.peer.toString(), this.os);
+        if (this.peerConnection.getChannel() != null)
+            this.ms = new MessageSender(this.peer.toString(),
+                                        this.peerConnection.getChannel());
+        else
+            this.ms = new MessageSender(this.peer.toString(), this.os);
         this.ms.addOutgoingListener(this);
         this.ms.start();
         this.mr = new MessageReceiver(this.peer.toString(), this.is);
@@ -179,13 +208,68 @@ public class DownloadTask extends Thread implements IncomingListener,
         this.fireAddActiveTask(peer.toString(), this);
 
         if (this.initiate) {
-            this.ms.addMessageToQueue(new Message_HS(this.fileID, this.myID));
+            this.addMessageToQueue(new Message_HS(this.fileID, this.myID));
             this.changeState(this.WAIT_HS);
         } else{
             this.changeState(this.WAIT_BFORHAVE);
         }
     }
 
+    /**
+     * Inits the connection to the remote peer on the given engine instead of
+     * starting the message sender and receiver threads. This method does not
+     * block: the connection result, as well as all messages, are reported by
+     * the engine through the IncomingListener and OutgoingListener methods.
+     * If necessary, starts the handshake with the peer
+     * @param engine The engine that will drive the connection
+     * @throws IOException If the connection could not be created
+     */
+    public void initConnection(NIOEngine engine) throws IOException {
+        this.lock.lock();
+        try {
+            this.nc = new NIOConnection(this.peer.toString());
+            this.nc.addIncomingListener(this);
+            this.nc.addOutgoingListener(this);
+            if (this.peerConnection == null && !this.peer.isConnected()) {
+                engine.connect(this.peer.getIP(), this.peer.getPort(), this.nc);
+                this.peer.setConnected(true);
+            } else
+                engine.register(this.peerConnection.getChannel(), this.nc);
+
+            this.fireAddActiveTask(peer.toString(), this);
+
+            if (this.initiate) {
+                this.addMessageToQueue(new Message_HS(this.fileID, this.myID));
+                this.changeState(this.WAIT_HS);
+            } else{
+                this.changeState(this.WAIT_BFORHAVE);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the message in parameter in the outgoing queue of the connection to
+     * the remote peer, whether it is driven by a MessageSender or a NIOEngine
+     * @param m Message
+     */
+    public void addMessageToQueue(Message m) {
+        NIOConnection nc = this.nc;
+        MessageSender ms = this.ms;
+        if (nc != null)
+            nc.addMessageToQueue(m);
+        else if (ms != null)
+            ms.addMessageToQueue(m);
+    }
+
+    /**
+     * Starts this task on a new thread created by the TaskRunner
+     */
+    public void start() {
+        TaskRunner.start(this, "DT_" + this.peer, false);
+    }
+
     public void run() {
         try {
             this.initConnection();
@@ -193,10 +277,13 @@ public class DownloadTask extends Thread implements IncomingListener,
             /**
              * Wait for the task to end, i.e. the peer to return to IDLE state
              */
-            while (this.run)
-                synchronized (this) {
-                    this.wait();
-                }
+            this.lock.lock();
+            try {
+                while (this.run)
+                    this.ended.await();
+            } finally {
+                this.lock.unlock();
+            }
         } catch (UnknownHostException uhe) {
             this.fireTaskCompleted(this.peer.toString(), this.UNKNOWN_HOST);
         } catch (IOException ioe) {
@@ -207,32 +294,408 @@ public class DownloadTask extends Thread implements IncomingListener,
     }
 
     /**
-     * Clear the piece currently downloading
+     * Clear the pieces currently downloading and the ones waiting to be
+     */
+    private void clear() {
+        this.lock.lock();
+        try {
+            this.releaseRequests();
+            this.pieces.clear();
+            this.assignedPieces.clear();
+            this.downloadPiece = null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the blocks of the pending requests, so that other peers can
+     * request them, and empties the pending request list
      */
-    private synchronized void clear() {
-        if (downloadPiece != null) {
-            this.firePieceRequested(downloadPiece.getIndex(), false);
-            downloadPiece = null;
+    private void releaseRequests() {
+        TreeSet<Integer> released = new TreeSet<Integer>();
+        for (BlockRequest br : this.pendingRequest) {
+            Piece p = this.pieces.get(br.getPiece());
+            if (p != null)
+                p.releaseBlock(br.getBegin());
+            released.add(br.getPiece());
         }
+        this.pendingRequest.clear();
+        this.isDownloading = false;
+        for (int piece : released)
+            this.firePieceRequested(piece, false);
+    }
+
+    /**
+     * Returns the next block to request. Blocks are taken from the piece being
+     * requested, which other tasks may be downloading too. If all its blocks
+     * have been requested, takes the next piece assigned to this task, and asks
+     * the DownloadManager for a new one if there is no more assigned piece, so
+     * that the request pipeline does not drain at the end of a piece. In
+     * endgame mode, blocks already requested to other peers are requested again
+     * @return BlockRequest The block to request, null if there is none
+     */
+    private BlockRequest nextBlock() {
+        while (true) {
+            if (this.downloadPiece != null) {
+                Piece p = this.downloadPiece;
+                int begin = p.requestBlock();
+                if (begin != -1 && p.isFullyRequested())
+                    this.firePieceRequested(p.getIndex(), true);
+                if (begin == -1 && this.endgame)
+                    begin = this.missingBlock(p);
+                if (begin != -1)
+                    return new BlockRequest(p.getIndex(), begin,
+                                            p.getBlockLength(begin));
+                this.downloadPiece = null;
+                this.checkPiece(p);
+            }
+            if (this.needsPiece())
+                this.firePeerReady(this.peer.toString());
+            if (this.assignedPieces.isEmpty())
+                return null;
+            this.downloadPiece = this.assignedPieces.removeFirst();
+            this.pieces.put(this.downloadPiece.getIndex(), this.downloadPiece);
+        }
+    }
+
+    /**
+     * Returns the offset of a block of the given piece that has not been
+     * received and that is not requested to this peer yet
+     * @param p Piece
+     * @return int The offset of the block, -1 if there is none
+     */
+    private int missingBlock(Piece p) {
+        for (int begin = 0; begin < p.getLength();
+                     begin += PeerProtocol.BLOCK_SIZE)
+            if (!p.hasBlock(begin) && !this.isPending(p.getIndex(), begin))
+                return begin;
+        return -1;
+    }
+
+    /**
+     * Returns true if there is a request pending for the given piece
+     * @param piece int
+     * @return boolean
+     */
+    private boolean isPending(int piece) {
+        for (BlockRequest br : this.pendingRequest)
+            if (br.getPiece() == piece)
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns true if the given block is requested to the peer
+     * @param piece int
+     * @param begin int
+     * @return boolean
+     */
+    private boolean isPending(int piece, int begin) {
+        for (BlockRequest br : this.pendingRequest)
+            if (br.isFor(piece, begin))
+                return true;
+        return false;
+    }
+
+    /**
+     * Checks the piece in parameter once this task has no block left to
+     * request for it and no request pending. If all its blocks have been
+     * received, whoever sent them, the first task to notice hands the piece to
+     * the PieceVerifier, which informs the DownloadManager of the result while
+     * this task goes on downloading. A corrupted piece is cleared so that it
+     * is downloaded again. Otherwise, the missing blocks are being downloaded
+     * by other tasks, and this task forgets the piece
+     * @param p Piece
+     */
+    private void checkPiece(Piece p) {
+        if (p == this.downloadPiece || this.isPending(p.getIndex()) ||
+            !this.pieces.containsKey(p.getIndex()))
+            return;
+        this.pieces.remove(p.getIndex());
+        if (this.claim(p)) {
+            final PieceStates s = this.states;
+            PieceVerifier.getDefault().verify(p, new VerifyListener() {
+                public void pieceVerified(Piece piece, boolean ok) {
+                    if (!ok) {
+                        piece.clearData();
+                        if (s != null)
+                            s.compareAndSet(piece.getIndex(),
+                                            PieceStates.VERIFYING,
+                                            PieceStates.REQUESTED);
+                    }
+                    firePieceCompleted(piece.getIndex(), ok);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns true if all the blocks of the piece have been received and this
+     * task is the one that should verify it. The piece goes to the VERIFYING
+     * state, so no other task can claim it
+     * @param p Piece
+     * @return boolean
+     */
+    private boolean claim(Piece p) {
+        if (this.states == null)
+            return p.claim();
+        if (!p.isComplete())
+            return false;
+        int i = p.getIndex();
+        return this.states.compareAndSet(i, PieceStates.DOWNLOADING,
+                                         PieceStates.VERIFYING) ||
+                this.states.compareAndSet(i, PieceStates.REQUESTED,
+                                          PieceStates.VERIFYING);
+    }
+
+    /**
+     * Returns true if this task is downloading the given piece or has been
+     * assigned it
+     * @param piece int
+     * @return boolean
+     */
+    public boolean holdsPiece(int piece) {
+        this.lock.lock();
+        try {
+            if (this.pieces.containsKey(piece))
+                return true;
+            for (Piece p : this.assignedPieces)
+                if (p.getIndex() == piece)
+                    return true;
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels the request for the given block, if it is pending. Used in
+     * endgame mode when the block has been received from another peer. The
+     * cancellation is done right away if this task is not busy, otherwise on
+     * the next message received
+     * @param piece int
+     * @param begin int
+     */
+    public void cancelRequest(int piece, int begin) {
+        this.cancelledBlocks.add(new BlockRequest(piece, begin, 0));
+        if (this.lock.tryLock()) {
+            try {
+                this.processCancels();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Cancels all the pending requests for the given piece and forgets it.
+     * Used in endgame mode when the piece has been completed by another task.
+     * The cancellation is done right away if this task is not busy, otherwise
+     * on the next message received
+     * @param piece int
+     */
+    public void cancelPiece(int piece) {
+        this.cancelledPieces.add(piece);
+        if (this.lock.tryLock()) {
+            try {
+                this.processCancels();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Asks the DownloadManager for a piece if this task can take one, e.g.
+     * when pieces have to be downloaded again. Nothing is done if this task is
+     * busy, as it asks for pieces by itself once done
+     */
+    public void wakeUp() {
+        if (this.lock.tryLock()) {
+            try {
+                if (this.needsPiece())
+                    this.firePeerReady(this.peer.toString());
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends a CANCEL message for the pending requests matching the blocks and
+     * pieces cancelled since the last call, and removes them from the pending
+     * request list
+     */
+    private void processCancels() {
+        if (this.cancelledBlocks.isEmpty() && this.cancelledPieces.isEmpty())
+            return;
+        BlockRequest c;
+        while ((c = this.cancelledBlocks.poll()) != null) {
+            for (Iterator<BlockRequest> it = this.pendingRequest.iterator();
+                 it.hasNext(); ) {
+                BlockRequest br = it.next();
+                if (br.isFor(c.getPiece(), c.getBegin())) {
+                    it.remove();
+                    this.addMessageToQueue(new Message_PP(PeerProtocol.CANCEL,
+                            br.toPayload(), 2));
+                    Piece p = this.pieces.get(br.getPiece());
+                    if (p != null)
+                        this.checkPiece(p);
+                    break;
+                }
+            }
+        }
+        Integer piece;
+        while ((piece = this.cancelledPieces.poll()) != null) {
+            for (Iterator<BlockRequest> it = this.pendingRequest.iterator();
+                 it.hasNext(); ) {
+                BlockRequest br = it.next();
+                if (br.getPiece() == piece) {
+                    it.remove();
+                    this.addMessageToQueue(new Message_PP(PeerProtocol.CANCEL,
+                            br.toPayload(), 2));
+                }
+            }
+            this.pieces.remove(piece);
+            for (Iterator<Piece> it = this.assignedPieces.iterator(); it.hasNext(); )
+                if (it.next().getIndex() == piece)
+                    it.remove();
+            if (this.downloadPiece != null && this.downloadPiece.getIndex() == piece)
+                this.downloadPiece = null;
+        }
+        if (this.pendingRequest.size() == 0)
+            this.isDownloading = false;
+        if (this.state == WAIT_BLOCK)
+            this.changeState(WAIT_BLOCK);
+    }
+
+    /**
+     * Returns the write counters of the connection to the remote peer, null if
+     * the connection is not established
+     * @return SendStatistics
+     */
+    public SendStatistics getSendStatistics() {
+        NIOConnection nc = this.nc;
+        MessageSender ms = this.ms;
+        if (nc != null)
+            return nc.getStatistics();
+        else if (ms != null)
+            return ms.getStatistics();
+        return null;
+    }
+
+    /**
+     * Returns the request pipeline of this task, which gives the number of
+     * outstanding requests and the round-trip time to the remote peer
+     * @return RequestPipeline
+     */
+    public RequestPipeline getPipeline() {
+        return this.pipeline;
+    }
+
+    /**
+     * Sets the piece state table shared with the other tasks, used to decide
+     * which task verifies a piece once all its blocks have been received
+     * @param states PieceStates
+     */
+    public void setPieceStates(PieceStates states) {
+        this.states = states;
+    }
+
+    /**
+     * Announces a complete piece to the remote peer. HAVE messages must not be
+     * sent before our BITFIELD, so the piece is kept until then. This does not
+     * take the lock of the task and can be called while holding the one of the
+     * DownloadManager
+     * @param piece int
+     */
+    public void sendHave(int piece) {
+        this.haves.add(piece);
+        if (this.bitfieldSent)
+            this.sendHaves();
+    }
+
+    /**
+     * Sends the HAVE messages of the pieces announced so far
+     */
+    private void sendHaves() {
+        Integer piece;
+        while ((piece = this.haves.poll()) != null)
+            this.addMessageToQueue(new Message_PP(PeerProtocol.HAVE,
+                    Utils.intToByteArray(piece), 1));
+    }
+
+    /**
+     * Returns true if the given index, received from the remote peer, is the
+     * one of a piece of the torrent
+     * @param index int
+     * @return boolean
+     */
+    private boolean isPieceIndex(int index) {
+        PieceStates s = this.states;
+        return index >= 0 && index < (s != null ? s.getNbPieces() :
+                                      this.bitfield.length * 8);
     }
 
     /**
      * Returns this peer object
      * @return Peer
      */
-    public synchronized Peer getPeer(){
-        return this.peer;
+    public Peer getPeer(){
+        this.lock.lock();
+        try {
+            return this.peer;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if this task can be assigned a new piece, i.e. if all the
+     * pieces it was assigned have been started and it holds less than
+     * Constants.MAX_PIECES_PER_TASK pieces
+     * @return boolean
+     */
+    public boolean needsPiece() {
+        this.lock.lock();
+        try {
+            return this.assignedPieces.isEmpty() &&
+                    this.pieces.size() < Constants.MAX_PIECES_PER_TASK;
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
-     * Request a peer to the peer
+     * Request a peer to the peer. The piece is added to the pieces assigned to
+     * this task and will be requested once the previous ones are
      * @param p The piece to be requested to the peer
      */
-    public synchronized void requestPiece(Piece p) {
-        synchronized (this) {
-            this.downloadPiece = p;
+    public void requestPiece(Piece p) {
+        this.requestPiece(p, false);
+    }
+
+    /**
+     * Request a peer to the peer. The piece is added to the pieces assigned to
+     * this task and will be requested once the previous ones are
+     * @param p The piece to be requested to the peer
+     * @param endgame True if the download is in endgame mode, in which case
+     * the blocks requested to other peers are requested to this peer too
+     */
+    public void requestPiece(Piece p, boolean endgame) {
+        this.lock.lock();
+        try {
+            if (endgame)
+                this.endgame = true;
+            if (this.pieces.containsKey(p.getIndex()) ||
+                this.assignedPieces.contains(p))
+                return;
+            this.assignedPieces.add(p);
             if (this.state == this.READY_2_DL)
                 this.changeState(this.DOWNLOADING);
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -240,10 +703,15 @@ public class DownloadTask extends Thread implements IncomingListener,
      * Returns the total amount of bytes downloaded by this task so far
      * @return int
      */
-    public synchronized int checkDownloaded(){
-        int d = new Long(this.downloaded).intValue();
-        //this.downloaded = 0;
-        return d;
+    public int checkDownloaded(){
+        this.lock.lock();
+        try {
+            int d = new Long(this.downloaded).intValue();
+            //this.downloaded = 0;
+            return d;
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
@@ -252,9 +720,14 @@ public class DownloadTask extends Thread implements IncomingListener,
      * it that this peer connection has been closed, resulting in the deletion of
      * this task
      */
-    public synchronized void connectionClosed() {
-        this.clear();
-        this.fireTaskCompleted(this.peer.toString(), this.CONNECTION_REFUSED);
+    public void connectionClosed() {
+        this.lock.lock();
+        try {
+            this.clear();
+            this.fireTaskCompleted(this.peer.toString(), this.CONNECTION_REFUSED);
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     /**
@@ -267,13 +740,19 @@ public class DownloadTask extends Thread implements IncomingListener,
      * Otherwise, inform the DownloadManager that this task is still alive and has
      * not been used for a long time...
      */
-    public synchronized void keepAliveSent() {
-        if (System.currentTimeMillis() - this.lmrt > 180000) {
-            this.clear();
-            this.fireTaskCompleted(this.peer.toString(), this.TIMEOUT);
-            return;
+    public void keepAliveSent() {
+        this.lock.lock();
+        try {
+            this.processCancels();
+            if (System.currentTimeMillis() - this.lmrt > 180000) {
+                this.clear();
+                this.fireTaskCompleted(this.peer.toString(), this.TIMEOUT);
+                return;
+            }
+            this.firePeerReady(this.peer.toString());
+        } finally {
+            this.lock.unlock();
         }
-        this.firePeerReady(this.peer.toString());
     }
 
     /**
@@ -281,162 +760,230 @@ public class DownloadTask extends Thread implements IncomingListener,
      * take the necessary actions
      * @param m Message
      */
-    public synchronized void messageReceived(Message m) {
-        if (m == null) {
-            this.fireTaskCompleted(this.peer.toString(),
-                                   this.MALFORMED_MESSAGE);
-            return;
-        }
-        this.lmrt = System.currentTimeMillis();
-
-        if (m.getType() == PeerProtocol.HANDSHAKE) {
-            Message_HS hs = (Message_HS) m;
-
-            // Check that the requested file is the one this client is sharing
-            if (Utils.bytesCompare(hs.getFileID(),
-                                   this.fileID)) {
-                if (!initiate) { // If not already done, send handshake message
-                    this.peer.setID(new String(hs.getPeerID()));
-                    this.ms.addMessageToQueue(new Message_HS(this.fileID, this.myID));
-                }
-
-                this.ms.addMessageToQueue(new Message_PP(PeerProtocol.BITFIELD,
-                        this.bitfield));
-
-
-                this.creationTime = System.currentTimeMillis();
-                this.changeState(this.WAIT_BFORHAVE);
-            } else{
+    public void messageReceived(Message m) {
+        this.lock.lock();
+        try {
+            if (m == null) {
                 this.fireTaskCompleted(this.peer.toString(),
-                                       this.BAD_HANDSHAKE);
+                                       this.MALFORMED_MESSAGE);
+                return;
             }
-            hs = null;
-
-        } else {
-            Message_PP message = (Message_PP) m;
-            switch (message.getType()) {
-            case PeerProtocol.KEEP_ALIVE:
-                // Nothing to do, just keep the connection open
-                break;
-
-            case PeerProtocol.CHOKE:
-                /*
-                 * Change the choking state to true, meaning remote peer
-                 * will not accept any request message from this client
-                 */
-                this.peer.setChoking(true);
-                this.isDownloading = false;
-
-                break;
+            this.lmrt = System.currentTimeMillis();
+            this.processCancels();
+
+            if (m.getType() == PeerProtocol.HANDSHAKE) {
+                Message_HS hs = (Message_HS) m;
+
+                // Check that the requested file is the one this client is sharing
+                if (Utils.bytesCompare(hs.getFileID(),
+                                       this.fileID)) {
+                    if (!initiate) { // If not already done, send handshake message
+                        this.peer.setID(new String(hs.getPeerID()));
+                        this.addMessageToQueue(new Message_HS(this.fileID, this.myID));
+                    }
 
-            case PeerProtocol.UNCHOKE:
-                /*
-                 * Change the choking state to false, meaning this client now
-                 * accepts request messages from this client.
-                 * If this task was already downloading a piece, then continue.
-                 * Otherwise, advertise DownloadManager that it is ready to do so
-                 */
-                this.peer.setChoking(false);
-                if (this.downloadPiece == null) {
-                    this.changeState(this.READY_2_DL);
-                } else
+                    /*
+                     * The bitfield is built now, since pieces may have been
+                     * completed or checked since this task was created. The
+                     * pieces announced in the meantime follow it
+                     */
+                    PieceStates s = this.states;
+                    this.addMessageToQueue(new Message_PP(PeerProtocol.BITFIELD,
+                            (s != null) ? s.getBitField() : this.bitfield));
+                    this.bitfieldSent = true;
+                    this.sendHaves();
+
+
+                    this.creationTime = System.currentTimeMillis();
+                    this.changeState(this.WAIT_BFORHAVE);
+                } else{
+                    this.fireTaskCompleted(this.peer.toString(),
+                                           this.BAD_HANDSHAKE);
+                }
+                hs = null;
+
+            } else {
+                Message_PP message = (Message_PP) m;
+                switch (message.getType()) {
+                case PeerProtocol.KEEP_ALIVE:
+                    // Nothing to do, just keep the connection open
+                    break;
+
+                case PeerProtocol.CHOKE:
+                    /*
+                     * Change the choking state to true, meaning remote peer
+                     * will not accept any request message from this client.
+                     * The pending requests are dropped by the remote peer, so
+                     * their blocks are released for the other peers
+                     */
+                    this.peer.setChoking(true);
+                    this.releaseRequests();
+
+                    break;
+
+                case PeerProtocol.UNCHOKE:
+                    /*
+                     * Change the choking state to false, meaning this client now
+                     * accepts request messages from this client.
+                     * If this task was already downloading a piece, then continue.
+                     * Otherwise, advertise DownloadManager that it is ready to do so
+                     */
+                    this.peer.setChoking(false);
+                    if (this.pieces.isEmpty() && this.assignedPieces.isEmpty()) {
+                        this.changeState(this.READY_2_DL);
+                    } else
+                        this.changeState(this.DOWNLOADING);
+                    break;
+
+                case PeerProtocol.INTERESTED:
+                    /*
+                     * Change the interested state of the remote peer to true,
+                     * meaning this peer will start downloading from this client if
+                     * it is unchoked
+                     */
+                    this.peer.setInterested(true);
+                    break;
+
+                case PeerProtocol.NOT_INTERESTED:
+                    /*
+                     * Change the interested state of the remote peer to true,
+                     * meaning this peer will not start downloading from this client
+                     * if it is unchoked
+                     */
+
+                    this.peer.setInterested(false);
+                    break;
+
+                case PeerProtocol.HAVE:
+                    /*
+                     * Update the peer piece list with the piece described in this
+                     * message and advertise DownloadManager of the change
+                     */
+                    int have = Utils.byteArrayToInt(message.getPayload());
+                    if (!this.isPieceIndex(have)) {
+                        this.fireTaskCompleted(this.peer.toString(),
+                                               MALFORMED_MESSAGE);
+                        break;
+                    }
+                    this.peer.setHasPiece(have, true);
+                    this.firePeerHave(this.peer.toString(), have);
+                    break;
+
+                case PeerProtocol.BITFIELD:
+                    /*
+                     * Update the peer piece list with the piece described in this
+                     * message and advertise DownloadManager of the change
+                     */
+                    this.peer.setHasPiece(message.getPayload());
+                    this.firePeerAvailability(this.peer.toString(),
+                                              this.peer.getHasPiece());
+                    this.changeState(this.WAIT_UNCHOKE);
+                    break;
+
+                case PeerProtocol.REQUEST:
+                    /*
+                     * If the peer is not choked, advertise the DownloadManager of
+                     * this request. Otherwise, end connection since the peer does
+                     * not respect the Bittorrent protocol
+                     */
+
+                    if(!this.peer.isChoked()){
+                        this.firePeerRequest(this.peer.toString(),
+                                             Utils.byteArrayToInt(
+                                                     Utils.subArray(message.
+                                getPayload(),
+                                0, 4)), Utils.byteArrayToInt(Utils.subArray(
+                                        message.getPayload(), 4, 4)),
+                                             Utils.byteArrayToInt(
+                                                     Utils.subArray(message.
+                                getPayload(), 8, 4)));
+                    }else{
+                        this.fireTaskCompleted(this.peer.toString(), this.MALFORMED_MESSAGE);
+                    }
+                    break;
+
+                case PeerProtocol.PIECE:
+                    /**
+                     * Sets the block of data downloaded in the piece block list and
+                     * update the peer download rate. Removes the piece block from
+                     * the pending request list and change state. If all the
+                     * blocks of the piece have been requested and received, then
+                     * we can verify the integrity of the data
+                     */
+                    int index = message.getBlockIndex();
+                    if (!this.isPieceIndex(index)) {
+                        this.fireTaskCompleted(this.peer.toString(),
+                                               MALFORMED_MESSAGE);
+                        break;
+                    }
+                    int begin = message.getBlockBegin();
+                    ByteBuffer data = message.getBlock();
+                    int length = data.remaining();
+                    Piece piece = this.pieces.get(index);
+                    /*
+                     * The state is checked under the piece monitor: the data
+                     * of a verified piece is cleared under it before the piece
+                     * becomes COMPLETE, so a late block cannot take a new
+                     * buffer for a piece that is being verified or complete
+                     */
+                    if (piece != null) {
+                        synchronized (piece) {
+                            if (this.states == null ||
+                                this.states.isDownloading(index))
+                                piece.setBlock(begin, data);
+                        }
+                    }
+                    this.peer.setDLRate(length);
+                    for (Iterator<BlockRequest> it = this.pendingRequest.iterator();
+                         it.hasNext(); ) {
+                        BlockRequest br = it.next();
+                        if (br.isFor(index, begin)) {
+                            it.remove();
+                            this.pipeline.blockReceived(System.currentTimeMillis() -
+                                    br.getTime(), length);
+                            break;
+                        }
+                    }
+                    if (this.pendingRequest.size() == 0)
+                        this.isDownloading = false;
+                    if (piece != null) {
+                        this.fireBlockReceived(index, begin);
+                        this.checkPiece(piece);
+                    }
                     this.changeState(this.DOWNLOADING);
-                break;
-
-            case PeerProtocol.INTERESTED:
-                /*
-                 * Change the interested state of the remote peer to true,
-                 * meaning this peer will start downloading from this client if
-                 * it is unchoked
-                 */
-                this.peer.setInterested(true);
-                break;
-
-            case PeerProtocol.NOT_INTERESTED:
-                /*
-                 * Change the interested state of the remote peer to true,
-                 * meaning this peer will not start downloading from this client
-                 * if it is unchoked
-                 */
-
-                this.peer.setInterested(false);
-                break;
-
-            case PeerProtocol.HAVE:
-                /*
-                 * Update the peer piece list with the piece described in this
-                 * message and advertise DownloadManager of the change
-                 */
-                this.peer.setHasPiece(Utils.byteArrayToInt(message.
-                        getPayload()), true);
-                this.firePeerAvailability(this.peer.toString(),
-                                          this.peer.getHasPiece());
-                break;
-
-            case PeerProtocol.BITFIELD:
-                /*
-                 * Update the peer piece list with the piece described in this
-                 * message and advertise DownloadManager of the change
-                 */
-                this.peer.setHasPiece(message.getPayload());
-                this.firePeerAvailability(this.peer.toString(),
-                                          this.peer.getHasPiece());
-                this.changeState(this.WAIT_UNCHOKE);
-                break;
-
-            case PeerProtocol.REQUEST:
-                /*
-                 * If the peer is not choked, advertise the DownloadManager of
-                 * this request. Otherwise, end connection since the peer does
-                 * not respect the Bittorrent protocol
-                 */
+                    break;
+
+                case PeerProtocol.CANCEL:
+                    /**
+                     * Removes the requested block from the outgoing queue if it
+                     * has not been sent yet
+                     */
+                    if (message.getPayload().length == 12) {
+                        int cIndex = Utils.byteArrayToInt(Utils.subArray(
+                                message.getPayload(), 0, 4));
+                        int cBegin = Utils.byteArrayToInt(Utils.subArray(
+                                message.getPayload(), 4, 4));
+                        int cLength = Utils.byteArrayToInt(Utils.subArray(
+                                message.getPayload(), 8, 4));
+                        NIOConnection nc = this.nc;
+                        MessageSender ms = this.ms;
+                        if (nc != null)
+                            nc.cancelPiece(cIndex, cBegin, cLength);
+                        else if (ms != null)
+                            ms.cancelPiece(cIndex, cBegin, cLength);
+                    }
+                    break;
 
-                if(!this.peer.isChoked()){
-                    this.firePeerRequest(this.peer.toString(),
-                                         Utils.byteArrayToInt(
-                                                 Utils.subArray(message.
-                            getPayload(),
-                            0, 4)), Utils.byteArrayToInt(Utils.subArray(
-                                    message.getPayload(), 4, 4)),
-                                         Utils.byteArrayToInt(
-                                                 Utils.subArray(message.
-                            getPayload(), 8, 4)));
-                }else{
-                    this.fireTaskCompleted(this.peer.toString(), this.MALFORMED_MESSAGE);
+                case PeerProtocol.PORT:
+                    // TODO: Still to implement the port message. Not used here
+                    break;
                 }
-                break;
-
-            case PeerProtocol.PIECE:
-                /**
-                 * Sets the block of data downloaded in the piece block list and
-                 * update the peer download rate. Removes the piece block from
-                 * the pending request list and change state.
-                 */
-                int begin = Utils.byteArrayToInt(Utils.subArray(message.
-                        getPayload(), 4, 4));
-                byte[] data = Utils.subArray(message.getPayload(), 8,
-                                             message.getPayload().length -
-                                             8);
-                this.downloadPiece.setBlock(begin,
-                                            data);
-                this.peer.setDLRate(data.length);
-                this.pendingRequest.remove(new Integer(begin));
-                if (this.pendingRequest.size() == 0)
-                    this.isDownloading = false;
-                this.changeState(this.DOWNLOADING);
-                break;
-
-            case PeerProtocol.CANCEL:
-                // TODO: Still to implement the cancel message. Not used here
-                break;
-
-            case PeerProtocol.PORT:
-                // TODO: Still to implement the port message. Not used here
-                break;
+                message = null;
             }
-            message = null;
+            m = null;
+        } finally {
+            this.lock.unlock();
         }
-        m = null;
     }
 
     /**
@@ -445,83 +992,69 @@ public class DownloadTask extends Thread implements IncomingListener,
      * be sent to the remote peer
      * @param newState The new state of the download task
      */
-    private synchronized void changeState(int newState) {
-        int oldState = this.state;
-        this.state = newState;
-        switch (newState) {
-
-        case WAIT_BLOCK:
-            /**
-             * Keep a certain number of unanswered requests, for performance.
-             * If only sending 1 request an waiting, it is a loss of time and
-             * bandwidth because of the RTT to the remote peer
-             */
-            if (this.pendingRequest.size() < 5 &&
-                offset < downloadPiece.getLength())
-                this.changeState(this.DOWNLOADING);
-            break;
-        case READY_2_DL:
-            /**
-             * Advertise the DownloadManager that this task is ready to download
-             */
-            this.firePeerReady(this.peer.toString());
-            break;
-        case DOWNLOADING:
+    private void changeState(int newState) {
+        this.lock.lock();
+        try {
+            int oldState = this.state;
+            this.state = newState;
+            switch (newState) {
 
-            /**
-             * If offset is bigger than the piece length and the pending request size
-             * is 0, then we have downloaded all the piece blocks and we can verify
-             * the integrity of the data
-             */
-            if (offset >= downloadPiece.getLength()) {
-                if (this.pendingRequest.size() == 0) {
-                    int p = downloadPiece.getIndex();
-                    offset = 0;
-                    if (downloadPiece.verify()) {
-                        this.firePieceCompleted(p, true);
-                        this.changeState(this.READY_2_DL);
+            case WAIT_BLOCK:
+                /**
+                 * Keep a certain number of unanswered requests, for performance.
+                 * If only sending 1 request an waiting, it is a loss of time and
+                 * bandwidth because of the RTT to the remote peer. The number of
+                 * requests follows the bandwidth-delay product of the connection
+                 * and may span several pieces
+                 */
+                if (this.pendingRequest.size() < this.pipeline.getDepth())
+                    this.changeState(this.DOWNLOADING);
+                break;
+            case READY_2_DL:
+                /**
+                 * Advertise the DownloadManager that this task is ready to download
+                 */
+                this.firePeerReady(this.peer.toString());
+                break;
+            case DOWNLOADING:
 
-                    } else {
-                        this.firePieceCompleted(p, false);
-                        this.changeState(this.READY_2_DL);
-                    }
-                    this.clear();
-                    this.changeState(READY_2_DL);
+                /**
+                 * Request the next blocks until the pipeline is full. If there
+                 * is no block left to request and no request pending, then this
+                 * task is ready to download a new piece. The DownloadManager has
+                 * already been asked for one by nextBlock()
+                 */
+                if (this.peer.isChoking())
+                    break;
+                BlockRequest br;
+                while (this.pendingRequest.size() < this.pipeline.getDepth() &&
+                       (br = this.nextBlock()) != null) {
+                    this.addMessageToQueue(new Message_PP(PeerProtocol.REQUEST,
+                            br.toPayload(), 2));
+                    if(this.updateTime == 0)
+                        this.updateTime = System.currentTimeMillis();
+                    this.pendingRequest.add(br);
+                    this.isDownloading = true;
                 }
-            } else if (downloadPiece != null && !this.peer.isChoking()) {
-
-                byte[] pieceIndex = Utils.intToByteArray(downloadPiece.
-                        getIndex());
-                byte[] begin = Utils.intToByteArray(offset);
-
-                int length = downloadPiece.getLength() - offset;
-                if (length >= PeerProtocol.BLOCK_SIZE)
-                    length = PeerProtocol.BLOCK_SIZE;
-                ms.addMessageToQueue(new Message_PP(PeerProtocol.REQUEST,
-                        Utils.concat(pieceIndex,
-                                     Utils.concat(begin,
-                                                  Utils.intToByteArray(length))), 2));
-                if(this.updateTime == 0)
-                    this.updateTime = System.currentTimeMillis();
-                this.pendingRequest.add(new Integer(offset));
-                offset += PeerProtocol.BLOCK_SIZE;
-                this.isDownloading = true;
-                this.changeState(this.WAIT_BLOCK);
-            }
+                this.state = this.pendingRequest.isEmpty() ? READY_2_DL :
+                             WAIT_BLOCK;
 
-            break;
+                break;
+            }
+        } finally {
+            this.lock.unlock();
         }
     }
 
-    public synchronized void addDTListener(DTListener listener) {
+    public void addDTListener(DTListener listener) {
         listeners.add(DTListener.class, listener);
     }
 
-    public synchronized void removeDTListener(DTListener listener) {
+    public void removeDTListener(DTListener listener) {
         listeners.remove(DTListener.class, listener);
     }
 
-    public synchronized DTListener[] getDTListeners() {
+    public DTListener[] getDTListeners() {
         return listeners.getListeners(DTListener.class);
     }
 
@@ -530,8 +1063,8 @@ public class DownloadTask extends Thread implements IncomingListener,
      * @param piece int
      * @param requested boolean
      */
-    private synchronized void firePieceRequested(int piece,
-                                                 boolean requested) {
+    private void firePieceRequested(int piece,
+                                    boolean requested) {
         for (DTListener listener : getDTListeners()) {
             listener.pieceRequested(piece, requested);
         }
@@ -542,8 +1075,8 @@ public class DownloadTask extends Thread implements IncomingListener,
      * @param piece int
      * @param complete boolean
      */
-    private synchronized void firePieceCompleted(int piece,
-                                                 boolean complete) {
+    private void firePieceCompleted(int piece,
+                                    boolean complete) {
         for (DTListener listener : getDTListeners()) {
             listener.pieceCompleted(this.peer.toString(), piece, complete);
         }
@@ -554,18 +1087,29 @@ public class DownloadTask extends Thread implements IncomingListener,
      * @param id String
      * @param reason Reason why the task ended
      */
-    private synchronized void fireTaskCompleted(String id, int reason) {
+    private void fireTaskCompleted(String id, int reason) {
         this.end();
         for (DTListener listener : getDTListeners()) {
             listener.taskCompleted(id, reason);
         }
     }
 
+    /**
+     * Fired to inform that a requested block has been received
+     * @param piece int
+     * @param begin int
+     */
+    private void fireBlockReceived(int piece, int begin) {
+        for (DTListener listener : getDTListeners()) {
+            listener.blockReceived(this.peer.toString(), piece, begin);
+        }
+    }
+
     /**
      * Fired to inform that this task is ready to download
      * @param id String
      */
-    private synchronized void firePeerReady(String id) {
+    private void firePeerReady(String id) {
         for (DTListener listener : getDTListeners()) {
             listener.peerReady(id);
         }
@@ -578,8 +1122,8 @@ public class DownloadTask extends Thread implements IncomingListener,
      * @param begin int
      * @param length int
      */
-    private synchronized void firePeerRequest(String peerID, int piece,
-                                              int begin, int length) {
+    private void firePeerRequest(String peerID, int piece,
+                                 int begin, int length) {
         for (DTListener listener : getDTListeners()) {
             listener.peerRequest(peerID, piece, begin, length);
         }
@@ -591,20 +1135,30 @@ public class DownloadTask extends Thread implements IncomingListener,
      * @param id String
      * @param hasPiece BitSet
      */
-    private synchronized void firePeerAvailability(String id,
-            BitSet hasPiece) {
+    private void firePeerAvailability(String id, BitSet hasPiece) {
         for (DTListener listener : getDTListeners()) {
             listener.peerAvailability(id, hasPiece);
         }
     }
 
+    /**
+     * Fired to inform that the peer has a new piece
+     * @param id String
+     * @param piece int
+     */
+    private void firePeerHave(String id, int piece) {
+        for (DTListener listener : getDTListeners()) {
+            listener.peerHave(id, piece);
+        }
+    }
+
     /**
      * Fired to inform that this task has completed the handshake and is now
      * ready to communicate with the remote peer
      * @param id String
      * @param dt DownloadTask
      */
-    private synchronized void fireAddActiveTask(String id, DownloadTask dt) {
+    private void fireAddActiveTask(String id, DownloadTask dt) {
         for (DTListener listener : getDTListeners()) {
             listener.addActiveTask(id, dt);
         }
@@ -615,30 +1169,37 @@ public class DownloadTask extends Thread implements IncomingListener,
      * the communication thread (Message receiver and sender). Closes the
      * connection to the remote peer
      */
-    public synchronized void end(){
-        this.changeState(this.IDLE);
-        this.run = false;
-        synchronized(this){
+    public void end(){
+        this.lock.lock();
+        try {
+            this.changeState(this.IDLE);
+            this.run = false;
             if(this.ms != null){
-            this.ms.stopThread();
-            this.ms = null;
-        }
-        if(this.mr != null){
-            this.mr.stopThread();
-            this.mr = null;
-        }
-        try{
-            this.peerConnection.close();
-        }catch(Exception e){}
-        try{
-            this.is.close();
-        }catch(Exception e){}
-        try{
-            this.os.close();
-        }catch(Exception e){}
-        this.peerConnection = null;
-
-        this.notifyAll();
+                this.ms.stopThread();
+                this.ms = null;
+            }
+            if(this.mr != null){
+                this.mr.stopThread();
+                this.mr = null;
+            }
+            if(this.nc != null){
+                this.nc.close();
+                this.nc = null;
+            }
+            try{
+                this.peerConnection.close();
+            }catch(Exception e){}
+            try{
+                this.is.close();
+            }catch(Exception e){}
+            try{
+                this.os.close();
+            }catch(Exception e){}
+            this.peerConnection = null;
+
+            this.ended.signalAll();
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -0,0 +1,244 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Example checking that files larger than 2 GB are shared correctly. It
+ * creates sparse files of several terabytes holding random data around the
+ * 2^31, 2^32 and 2^40 offsets and at the file boundaries, then the pieces
+ * covering this data are read from a seeding DownloadManager, verified, saved
+ * by a downloading one and read back from its files.
+ *
+ * The hashes of the pieces that only contain zeros are not computed, and the
+ * files are not checked at startup, so the example runs in a few seconds on a
+ * file system supporting sparse files.
+ */
+class ExampleLargeFiles {
+    private static final int PIECE_LENGTH = 16 << 20;
+    private static final int MARK_LENGTH = 3000;
+    private static final String[] NAMES = {"a", "big", "c"};
+
+    /**
+     * Storage of the sparse files. It is not persistent, so the pieces are not
+     * checked in the files at startup
+     */
+    static class SparseStorage extends FileChannelStorage {
+        public boolean isPersistent() {
+            return false;
+        }
+    }
+
+    private File[] files;
+    private long[] lengths;
+    private long[] starts;
+    private long total;
+
+    public ExampleLargeFiles(String dir, long size) throws Exception {
+        this.lengths = new long[] {(1 << 20) + 5, size + 123, 777};
+        this.files = new File[this.lengths.length];
+        this.starts = new long[this.lengths.length];
+        ArrayList<Long> marks = new ArrayList<Long>();
+        long[] m = {(1L << 31) - 1000, (1L << 32) - 8, 5L << 30, (1L << 40) + 3,
+                   this.lengths[1] - MARK_LENGTH};
+        for (int i = 0; i < m.length; i++)
+            if (m[i] >= 0 && m[i] + MARK_LENGTH <= this.lengths[1])
+                marks.add(m[i]);
+
+        new File(dir + "seed/multi").mkdirs();
+        new File(dir + "leech/multi").mkdirs();
+        Random r = new Random(7);
+        for (int i = 0; i < this.files.length; i++) {
+            this.files[i] = new File(dir + "seed/multi/" + NAMES[i]);
+            RandomAccessFile f = new RandomAccessFile(this.files[i], "rw");
+            f.setLength(this.lengths[i]);
+            if (i != 1) {
+                byte[] b = new byte[(int) this.lengths[i]];
+                r.nextBytes(b);
+                f.write(b);
+            } else {
+                for (Long mark : marks) {
+                    byte[] b = new byte[MARK_LENGTH];
+                    r.nextBytes(b);
+                    f.seek(mark.longValue());
+                    f.write(b);
+                }
+            }
+            f.close();
+            if (i > 0)
+                this.starts[i] = this.starts[i - 1] + this.lengths[i - 1];
+        }
+        this.total = this.starts[2] + this.lengths[2];
+
+        int nbPieces = (int) ((this.total + PIECE_LENGTH - 1) / PIECE_LENGTH);
+        TreeSet<Integer> pieces = new TreeSet<Integer>();
+        for (int i = 0; i < this.files.length; i++) {
+            pieces.add((int) (this.starts[i] / PIECE_LENGTH));
+            pieces.add((int) ((this.starts[i] + this.lengths[i] - 1) /
+                              PIECE_LENGTH));
+        }
+        for (Long mark : marks) {
+            long start = this.starts[1] + mark.longValue();
+            pieces.add((int) (start / PIECE_LENGTH));
+            pieces.add((int) ((start + MARK_LENGTH - 1) / PIECE_LENGTH));
+        }
+        pieces.add(nbPieces - 2);
+
+        TorrentProcessor tp = new TorrentProcessor();
+        tp.setAnnounceURL("http://127.0.0.1:6969/announce");
+        tp.setPieceLength(PIECE_LENGTH / 1024);
+        tp.setName("multi");
+        ArrayList<String> paths = new ArrayList<String>();
+        for (int i = 0; i < this.files.length; i++)
+            paths.add(this.files[i].getPath());
+        tp.addFiles(paths);
+        tp.setCreator("ExampleLargeFiles");
+        tp.setComment("");
+        byte[] zeros = Utils.hash(new byte[PIECE_LENGTH]);
+        for (int i = 0; i < nbPieces; i++)
+            tp.getTorrent().piece_hash_values_as_binary.add(
+                    pieces.contains(i) ? Utils.hash(this.read(this.files, i)) :
+                    zeros);
+        FileOutputStream fos = new FileOutputStream(dir + "large.torrent");
+        fos.write(tp.generateTorrent());
+        fos.close();
+
+        TorrentProcessor parser = new TorrentProcessor();
+        TorrentFile t = parser.getTorrentFile(parser.parseTorrent(dir +
+                "large.torrent"));
+        boolean ok = t.total_length == this.total &&
+                     ((Long) t.length.get(1)).longValue() == this.lengths[1];
+        System.out.println("Torrent of " + this.total + " bytes in " +
+                           nbPieces + " pieces, lengths read back: " + ok);
+
+        Constants.SAVEPATH = dir + "seed/";
+        DownloadManager seed = new DownloadManager(t, Utils.generateID(),
+                new SparseStorage(), AllocatingStorage.SPARSE);
+        Constants.SAVEPATH = dir + "leech/";
+        DownloadManager leech = new DownloadManager(t, Utils.generateID(),
+                new SparseStorage(), AllocatingStorage.SPARSE);
+        for (Integer p : pieces) {
+            int i = p.intValue();
+            byte[] expected = this.read(this.files, i);
+            byte[] data = seed.getPieceFromFiles(i);
+            boolean read = Arrays.equals(data, expected);
+            byte[] block = seed.getPieceMessage(i, data.length - 16384, 16384).
+                           read();
+            boolean sent = Arrays.equals(Utils.subArray(block, 13, 16384),
+                    Utils.subArray(expected, data.length - 16384, 16384));
+            leech.getPiece(i).setBlock(0, data);
+            boolean verified = leech.getPiece(i).verify();
+            boolean saved = leech.savePiece(i) &&
+                            Arrays.equals(leech.getPieceFromFiles(i), expected);
+            System.out.println("Piece " + i + " " + leech.getPiece(i).
+                               getFileAndOffset() + ": read " + read +
+                               ", sent " + sent + ", verified " + verified +
+                               ", saved " + saved);
+            ok &= read && sent && verified && saved;
+        }
+        leech.closeTempFiles();
+        seed.closeTempFiles();
+
+        File[] copies = new File[this.files.length];
+        for (int i = 0; i < this.files.length; i++) {
+            copies[i] = new File(dir + "leech/multi/" + NAMES[i]);
+            ok &= copies[i].length() == this.lengths[i];
+        }
+        for (Integer p : pieces)
+            ok &= Arrays.equals(this.read(copies, p.intValue()),
+                                this.read(this.files, p.intValue()));
+        System.out.println("Pieces in the files once closed: " + ok);
+        System.out.println(ok ? "All the pieces are correct" :
+                           "Some pieces are NOT correct");
+        if (!ok)
+            throw new Exception("Large files are not handled correctly");
+    }
+
+    /**
+     * Reads a piece from the given files
+     * @param files The files of the torrent
+     * @param piece int
+     * @return byte[]
+     * @throws IOException
+     */
+    private byte[] read(File[] files, int piece) throws IOException {
+        long offset = (long) piece * PIECE_LENGTH;
+        byte[] b = new byte[(int) Math.min(PIECE_LENGTH, this.total - offset)];
+        int done = 0;
+        for (int i = 0; i < files.length && done < b.length; i++) {
+            long end = this.starts[i] + this.lengths[i];
+            if (offset + done >= end)
+                continue;
+            int n = (int) Math.min(b.length - done, end - (offset + done));
+            RandomAccessFile f = new RandomAccessFile(files[i], "r");
+            f.seek(offset + done - this.starts[i]);
+            f.readFully(b, done, n);
+            f.close();
+            done += n;
+        }
+        return b;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Incorrect use, please provide a directory " +
+                               "on a file system supporting sparse files\r\n" +
+                               "\r\nCorrect use of ExampleLargeFiles:\r\n" +
+                               "ExampleLargeFiles directory [size in GB]");
+            System.exit(1);
+        }
+        String dir = args[0].endsWith("/") ? args[0] : args[0] + "/";
+        long size = (args.length > 1) ? Long.parseLong(args[1]) : 3072;
+        try {
+            new ExampleLargeFiles(dir, size << 30);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage accessing the files through FileChannel positional reads and
+ * writes, which do not share a file pointer and so can run concurrently on
+ * the same file.
+ */
+public class FileChannelStorage implements Storage {
+    protected RandomAccessFile[] files = new RandomAccessFile[0];
+    protected FileChannel[] channels = new FileChannel[0];
+
+    public void open(File[] files, long[] lengths) throws IOException {
+        this.files = new RandomAccessFile[files.length];
+        this.channels = new FileChannel[files.length];
+        for (int i = 0; i < files.length; i++) {
+            this.files[i] = new RandomAccessFile(files[i], "rw");
+            this.channels[i] = this.files[i].getChannel();
+            this.allocate(i, lengths[i]);
+        }
+    }
+
+    public int getNbFiles() {
+        return this.channels.length;
+    }
+
+    public long size(int file) throws IOException {
+        return this.channels[file].size();
+    }
+
+    public void allocate(int file, long length) throws IOException {
+        synchronized (this.files[file]) {
+            if (this.files[file].length() != length)
+                this.files[file].setLength(length);
+        }
+    }
+
+    public int read(int file, long position, ByteBuffer dst) throws IOException {
+        return this.channels[file].read(dst, position);
+    }
+
+    public int write(int file, long position, ByteBuffer src) throws IOException {
+        int n = 0;
+        while (src.hasRemaining())
+            n += this.channels[file].write(src, position + n);
+        return n;
+    }
+
+    public long transferTo(int file, long position, long count,
+                           WritableByteChannel target) throws IOException {
+        return this.channels[file].transferTo(position, count, target);
+    }
+
+    public ByteBuffer map(int file, long position, int length) throws IOException {
+        return this.channels[file].map(FileChannel.MapMode.READ_ONLY,
+                                       position, length);
+    }
+
+    public void flush() throws IOException {
+        for (int i = 0; i < this.channels.length; i++)
+            this.channels[i].force(false);
+    }
+
+    public void flush(int file) throws IOException {
+        this.channels[file].force(false);
+    }
+
+    public void close() throws IOException {
+        IOException e = null;
+        for (int i = 0; i < this.files.length; i++) {
+            try {
+                this.files[i].close();
+            } catch (IOException ioe) {
+                e = ioe;
+            }
+        }
+        if (e != null)
+            throw e;
+    }
+
+    public boolean isPersistent() {
+        return true;
+    }
+}
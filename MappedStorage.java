@@ -0,0 +1,249 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storage accessing the files through memory-mapped windows. Each file is
+ * divided into windows of a fixed size, mapped the first time they are
+ * accessed. Reads, writes and uploads are then copies from and to the mapped
+ * memory, without any system call, and hot content is served straight from
+ * the page cache.
+ *
+ * The storage keeps a cache of at most maxWindows windows, the least recently
+ * used one being dropped when another has to be mapped. This is a soft limit:
+ * Java cannot unmap a buffer, so a dropped window stays mapped until the
+ * garbage collector frees it, and the buffers given by map() and the uploads
+ * may still use it meanwhile. The mapped memory and address space are
+ * therefore not bounded by maxWindows, only the windows kept reachable by
+ * the storage. The written data is left to the system until flush() is
+ * called.
+ */
+public class MappedStorage extends FileChannelStorage {
+    private final long windowSize;
+    private final int maxWindows;
+    /**
+     * Cache of the mapped windows in access order, keyed by file and window
+     * index. The windows removed from it are only unmapped by the garbage
+     * collector
+     */
+    private final LinkedHashMap<Long, MappedByteBuffer> windows;
+    private long mapped = 0;
+
+    /**
+     * Create a storage with the window size and count of the Constants
+     */
+    public MappedStorage() {
+        this(Constants.MAPPED_WINDOW_SIZE, Constants.MAPPED_WINDOWS);
+    }
+
+    /**
+     * Create a storage mapping the files in windows of the given size
+     * @param windowSize The size of a window in bytes
+     * @param maxWindows The maximal number of windows kept in the cache. The
+     * dropped windows stay mapped until they are garbage collected
+     */
+    public MappedStorage(int windowSize, int maxWindows) {
+        this.windowSize = windowSize;
+        this.maxWindows = Math.max(1, maxWindows);
+        this.windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, MappedByteBuffer> eldest) {
+                return size() > MappedStorage.this.maxWindows;
+            }
+        };
+    }
+
+    public void allocate(int file, long length) throws IOException {
+        super.allocate(file, length);
+        synchronized (this.windows) {
+            for (Iterator<Long> it = this.windows.keySet().iterator();
+                                 it.hasNext(); )
+                if ((int) (it.next().longValue() >>> 40) == file)
+                    it.remove();
+        }
+    }
+
+    /**
+     * Returns the given window of the file, mapping it if needed
+     * @param file int
+     * @param window long
+     * @return MappedByteBuffer
+     * @throws IOException
+     */
+    private MappedByteBuffer window(int file, long window) throws IOException {
+        Long key = Long.valueOf(((long) file << 40) | window);
+        synchronized (this.windows) {
+            MappedByteBuffer m = this.windows.get(key);
+            if (m == null) {
+                long start = window * this.windowSize;
+                long len = Math.min(this.windowSize, this.size(file) - start);
+                m = this.channels[file].map(FileChannel.MapMode.READ_WRITE,
+                                            start, len);
+                this.windows.put(key, m);
+                this.mapped++;
+            }
+            return m;
+        }
+    }
+
+    /**
+     * Returns a buffer sharing the content of the file, from the position up
+     * to the end of its window or to the given length
+     * @param file int
+     * @param position long
+     * @param length long
+     * @return ByteBuffer null if the position is past the end of the file
+     * @throws IOException
+     */
+    private ByteBuffer slice(int file, long position, long length)
+            throws IOException {
+        if (position >= this.size(file))
+            return null;
+        long w = position / this.windowSize;
+        ByteBuffer b = this.window(file, w).duplicate();
+        int p = (int) (position - w * this.windowSize);
+        b.position(p);
+        b.limit((int) Math.min(b.limit(), p + length));
+        return b;
+    }
+
+    /**
+     * Returns the number of windows mapped since the storage was opened,
+     * including the ones mapped again after being dropped
+     * @return long
+     */
+    public long getMappedWindows() {
+        synchronized (this.windows) {
+            return this.mapped;
+        }
+    }
+
+    public int read(int file, long position, ByteBuffer dst) throws IOException {
+        int n = 0;
+        while (dst.hasRemaining()) {
+            ByteBuffer b = this.slice(file, position + n, dst.remaining());
+            if (b == null)
+                return (n == 0) ? -1 : n;
+            n += b.remaining();
+            dst.put(b);
+        }
+        return n;
+    }
+
+    public int write(int file, long position, ByteBuffer src) throws IOException {
+        int n = 0;
+        while (src.hasRemaining()) {
+            ByteBuffer b = this.slice(file, position + n, src.remaining());
+            if (b == null)
+                throw new IOException("Write past the end of file " + file);
+            int len = b.remaining();
+            ByteBuffer s = src.duplicate();
+            s.limit(s.position() + len);
+            b.put(s);
+            src.position(src.position() + len);
+            n += len;
+        }
+        return n;
+    }
+
+    public long transferTo(int file, long position, long count,
+                           WritableByteChannel target) throws IOException {
+        ByteBuffer b = this.slice(file, position, count);
+        if (b == null)
+            return 0;
+        return target.write(b);
+    }
+
+    public ByteBuffer map(int file, long position, int length) throws IOException {
+        ByteBuffer b = this.slice(file, position, length);
+        if (b == null || b.remaining() < length)
+            return super.map(file, position, length);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Forces the mapped windows, then the files, so that the data written in
+     * the windows already dropped is forced as well
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        MappedByteBuffer[] w;
+        synchronized (this.windows) {
+            w = this.windows.values().toArray(new MappedByteBuffer[0]);
+        }
+        for (int i = 0; i < w.length; i++)
+            w[i].force();
+        super.flush();
+    }
+
+    /**
+     * Forces the mapped windows of a file, then the file
+     * @param file int
+     * @throws IOException
+     */
+    public void flush(int file) throws IOException {
+        ArrayList<MappedByteBuffer> w = new ArrayList<MappedByteBuffer>();
+        synchronized (this.windows) {
+            for (Map.Entry<Long, MappedByteBuffer> e : this.windows.entrySet())
+                if ((int) (e.getKey().longValue() >>> 40) == file)
+                    w.add(e.getValue());
+        }
+        for (MappedByteBuffer m : w)
+            m.force();
+        super.flush(file);
+    }
+
+    public void close() throws IOException {
+        synchronized (this.windows) {
+            this.windows.clear();
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage keeping the files in memory, for tests and benchmarks. Nothing is
+ * written to the disk, so the data is lost when the storage is closed. Each
+ * file must be shorter than 2 GB.
+ */
+public class MemoryStorage implements Storage {
+    private ByteBuffer[] data = new ByteBuffer[0];
+
+    public synchronized void open(File[] files, long[] lengths)
+            throws IOException {
+        this.data = new ByteBuffer[files.length];
+        for (int i = 0; i < files.length; i++)
+            this.allocate(i, lengths[i]);
+    }
+
+    public synchronized int getNbFiles() {
+        return this.data.length;
+    }
+
+    public synchronized long size(int file) {
+        return (this.data[file] == null) ? 0 : this.data[file].capacity();
+    }
+
+    public synchronized void allocate(int file, long length) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("File " + file + " is too long to be kept " +
+                                  "in memory");
+        ByteBuffer old = this.data[file];
+        if (old != null && old.capacity() == length)
+            return;
+        ByteBuffer b = ByteBuffer.allocate((int) length);
+        if (old != null) {
+            old = old.duplicate();
+            old.clear();
+            old.limit(Math.min(old.capacity(), b.capacity()));
+            b.put(old);
+            b.clear();
+        }
+        this.data[file] = b;
+    }
+
+    /**
+     * Returns a buffer sharing the content of the file, from the position up
+     * to the given length or to the end of the file
+     * @param file int
+     * @param position long
+     * @param length long
+     * @return ByteBuffer null if the position is past the end of the file
+     */
+    private synchronized ByteBuffer slice(int file, long position, long length) {
+        ByteBuffer b = this.data[file];
+        if (b == null || position >= b.capacity())
+            return null;
+        b = b.duplicate();
+        b.position((int) position);
+        b.limit((int) Math.min(b.capacity(), position + length));
+        return b;
+    }
+
+    public int read(int file, long position, ByteBuffer dst) {
+        ByteBuffer b = this.slice(file, position, dst.remaining());
+        if (b == null)
+            return -1;
+        int n = b.remaining();
+        dst.put(b);
+        return n;
+    }
+
+    public int write(int file, long position, ByteBuffer src) throws IOException {
+        ByteBuffer b = this.slice(file, position, src.remaining());
+        if (b == null || b.remaining() < src.remaining())
+            throw new IOException("Write past the end of file " + file);
+        int n = src.remaining();
+        b.put(src);
+        return n;
+    }
+
+    public long transferTo(int file, long position, long count,
+                           WritableByteChannel target) throws IOException {
+        ByteBuffer b = this.slice(file, position, count);
+        if (b == null)
+            return 0;
+        return target.write(b);
+    }
+
+    public ByteBuffer map(int file, long position, int length) {
+        ByteBuffer b = this.slice(file, position, length);
+        return (b == null) ? null : b.slice().asReadOnlyBuffer();
+    }
+
+    public void flush() {
+    }
+
+    public void flush(int file) {
+    }
+
+    public synchronized void close() {
+        this.data = new ByteBuffer[this.data.length];
+    }
+
+    public boolean isPersistent() {
+        return false;
+    }
+}
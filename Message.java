@@ -37,6 +37,8 @@
 
 package jBittorrentAPI;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represent the general structure of a protocol message. It must have a type.
  */
@@ -64,4 +66,13 @@ abstract public class Message {
     }
 
     abstract public byte[] generate();
+
+    /**
+     * Returns the buffers that, written in order, form the whole message. Used
+     * for gathering writes, so that the message parts need not be concatenated
+     * @return ByteBuffer[]
+     */
+    public ByteBuffer[] buffers() {
+        return new ByteBuffer[] {ByteBuffer.wrap(this.generate())};
+    }
 }
@@ -0,0 +1,247 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes the messages received from a remote peer. Data is read into a single
+ * reusable buffer and length-prefixed frames are parsed in place, so a read
+ * call can bring in many messages at once.
+ *
+ * The block of a PIECE message is not copied: it is handed out as a slice of
+ * the decoder buffer, and is only valid until the next call to next() or read().
+ * The same holds for the Message_PP object returned by next(), which is reused
+ * for every message.
+ *
+ * Messages longer than the configured maximum length are rejected with an
+ * IOException before any allocation is made.
+ */
+public class MessageDecoder {
+    private static final int HS_LENGTH = 68;
+
+    private final int maxMessageLength;
+    private final boolean direct;
+    private ByteBuffer buffer;
+    /**
+     * Position of the first byte not yet decoded. Data waiting to be decoded
+     * lies between readPos and buffer.position()
+     */
+    private int readPos = 0;
+    private boolean hsOK = false;
+    private final Message_PP mess = new Message_PP();
+
+    /**
+     * Create a decoder using the default maximal message length and buffer
+     * type defined in Constants
+     */
+    public MessageDecoder() {
+        this(Constants.MAX_MESSAGE_LENGTH, Constants.DIRECT_BUFFERS);
+    }
+
+    /**
+     * Create a decoder
+     * @param maxMessageLength The maximal accepted length of a message
+     * @param direct True if the buffer should be allocated out of the heap
+     */
+    public MessageDecoder(int maxMessageLength, boolean direct) {
+        this.maxMessageLength = maxMessageLength;
+        this.direct = direct;
+        this.buffer = this.allocate(PeerProtocol.BLOCK_SIZE * 2 + 26);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) :
+                ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns the maximal accepted length of a message
+     * @return int
+     */
+    public int getMaxMessageLength() {
+        return this.maxMessageLength;
+    }
+
+    /**
+     * Returns the number of bytes read but not decoded yet
+     * @return int
+     */
+    public int available() {
+        return this.buffer.position() - this.readPos;
+    }
+
+    /**
+     * Makes room for at least 'needed' bytes from readPos, moving the undecoded
+     * data to the beginning of the buffer and growing it if necessary
+     * @param needed int
+     */
+    private void ensureCapacity(int needed) {
+        if (this.buffer.capacity() - this.readPos >= needed)
+            return;
+        if (this.buffer.capacity() < needed) {
+            ByteBuffer bigger = this.allocate(needed);
+            this.buffer.flip();
+            this.buffer.position(this.readPos);
+            bigger.put(this.buffer);
+            this.buffer = bigger;
+        } else
+            this.compact();
+        this.readPos = 0;
+    }
+
+    private void compact() {
+        this.buffer.flip();
+        this.buffer.position(this.readPos);
+        this.buffer.compact();
+        this.readPos = 0;
+    }
+
+    /**
+     * Prepares the buffer for a read call
+     */
+    private void prepareRead() {
+        if (this.readPos == this.buffer.position()) {
+            this.buffer.clear();
+            this.readPos = 0;
+        } else if (!this.buffer.hasRemaining())
+            this.compact();
+    }
+
+    /**
+     * Reads as many bytes as available from the channel
+     * @param in ReadableByteChannel
+     * @return int The number of bytes read, -1 if the end of stream is reached
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel in) throws IOException {
+        this.prepareRead();
+        return in.read(this.buffer);
+    }
+
+    /**
+     * Reads as many bytes as available from the stream, in one call
+     * @param in InputStream
+     * @return int The number of bytes read, -1 if the end of stream is reached
+     * @throws IOException
+     */
+    public int read(InputStream in) throws IOException {
+        this.prepareRead();
+        ByteBuffer b = this.buffer;
+        if (b.hasArray()) {
+            int read = in.read(b.array(), b.arrayOffset() + b.position(),
+                               b.remaining());
+            if (read > 0)
+                b.position(b.position() + read);
+            return read;
+        }
+        byte[] temp = new byte[Math.min(b.remaining(), 8192)];
+        int read = in.read(temp);
+        if (read > 0)
+            b.put(temp, 0, read);
+        return read;
+    }
+
+    /**
+     * Decodes the next message from the data read so far
+     * @return Message The next message, or null if more data must be read
+     * @throws IOException If the message is malformed or too long
+     */
+    public Message next() throws IOException {
+        ByteBuffer b = this.buffer;
+        int available = b.position() - this.readPos;
+        if (!this.hsOK) {
+            if (available < HS_LENGTH) {
+                this.ensureCapacity(HS_LENGTH);
+                return null;
+            }
+            byte[] lengthHS = new byte[1];
+            byte[] protocol = new byte[19];
+            byte[] reserved = new byte[8];
+            byte[] fileID = new byte[20];
+            byte[] peerID = new byte[20];
+            ByteBuffer hs = b.duplicate();
+            hs.limit(this.readPos + HS_LENGTH).position(this.readPos);
+            hs.get(lengthHS).get(protocol).get(reserved).get(fileID).get(peerID);
+            this.readPos += HS_LENGTH;
+            this.hsOK = true;
+            return new Message_HS(lengthHS, protocol, reserved, fileID, peerID);
+        }
+        if (available < 4)
+            return null;
+        int l = b.getInt(this.readPos);
+        if (l < 0 || l > this.maxMessageLength)
+            throw new IOException("Message length " + l +
+                                  " exceeds the maximal length " +
+                                  this.maxMessageLength);
+        if (available < 4 + l) {
+            this.ensureCapacity(4 + l);
+            return null;
+        }
+        int start = this.readPos + 4;
+        this.readPos += 4 + l;
+        if (l == 0) {
+            this.mess.setData(PeerProtocol.KEEP_ALIVE);
+            return this.mess;
+        }
+        int id = b.get(start) & 0xFF;
+        if (l == 1) {
+            this.mess.setData(id + 1);
+            return this.mess;
+        }
+        if (id + 1 == PeerProtocol.PIECE) {
+            if (l < 9)
+                throw new IOException("Malformed piece message");
+            ByteBuffer block = b.duplicate();
+            block.limit(start + l).position(start + 9);
+            this.mess.setBlock(b.getInt(start + 1), b.getInt(start + 5),
+                               block.slice());
+            return this.mess;
+        }
+        byte[] payload = new byte[l - 1];
+        ByteBuffer p = b.duplicate();
+        p.limit(start + l).position(start + 1);
+        p.get(payload);
+        this.mess.setData(id + 1, payload);
+        return this.mess;
+    }
+}
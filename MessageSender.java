@@ -38,6 +38,11 @@
 package jBittorrentAPI;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
@@ -45,23 +50,59 @@ import java.io.OutputStream;
 import javax.swing.event.EventListenerList;
 
 /**
- * Thread created to send message to the remote peer. Hold a queue for outgoing
- * messages
+ * Task created to send message to the remote peer. Hold a queue for outgoing
+ * messages. Each time it wakes up, the sender drains all the queued messages
+ * and writes them together, either with a single gathering write on the socket
+ * channel or through a buffer flushed once per batch
  */
-public class MessageSender extends Thread {
+public class MessageSender implements Runnable {
+    private static final int MAX_BATCH = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private String id;
     private OutputStream os = null;
+    private GatheringByteChannel channel = null;
+    private CountingOutputStream counter = null;
     private LinkedBlockingQueue<Message> outgoingMessage = null;
     private long lmst = 0;
     private boolean run = true;
     private final EventListenerList listeners = new EventListenerList();
+    private final SendStatistics stats = new SendStatistics();
 
 
+    /**
+     * Create a sender writing to the given stream. Messages are written to a
+     * buffer that is flushed at the end of each batch
+     * @param id The id of the peer that has been assigned this sender
+     * @param os OutputStream
+     */
     public MessageSender(String id, OutputStream os) {
-        //this.setName("MS_"+id);
-        this.os = os;
+        this.id = id;
+        this.counter = new CountingOutputStream(os);
+        this.os = new BufferedOutputStream(this.counter, BUFFER_SIZE);
         this.outgoingMessage = new LinkedBlockingQueue<Message>();
     }
 
+    /**
+     * Create a sender writing to the given channel. Each batch of messages is
+     * written with a gathering write
+     * @param id The id of the peer that has been assigned this sender
+     * @param channel A blocking channel connected to the remote peer
+     */
+    public MessageSender(String id, GatheringByteChannel channel) {
+        this.id = id;
+        this.channel = channel;
+        this.outgoingMessage = new LinkedBlockingQueue<Message>();
+    }
+
+    /**
+     * Returns the counters of messages, batches and write calls of this sender
+     * @return SendStatistics
+     */
+    public SendStatistics getStatistics() {
+        return this.stats;
+    }
+
     public void addOutgoingListener(OutgoingListener listener) {
         listeners.add(OutgoingListener.class, listener);
     }
@@ -99,30 +140,66 @@ public class MessageSender extends Thread {
      * Puts the message in parameter in the queue, waiting to be sent
      * @param m Message
      */
-    public synchronized void addMessageToQueue(Message m){
+    public void addMessageToQueue(Message m){
         this.outgoingMessage.add(m);
         this.lmst = System.currentTimeMillis();
-        //this.notify();
     }
 
     /**
-     * Sends messages from the queue. While the queue is not empty, polls message
-     * from it and sends it to the remote peer. If the queue is empty for more than
-     * 2 minutes, a keep-alive message is sent and the DownloadTask is advertised
+     * Removes the PIECE message for the given block from the queue, if it has
+     * not been sent yet
+     * @param index The piece index
+     * @param begin The offset of the block within the piece
+     * @param length The length of the block
+     * @return boolean True if the message has been removed
+     */
+    public boolean cancelPiece(int index, int begin, int length){
+        Queue<Message> queue = this.outgoingMessage;
+        if(queue == null)
+            return false;
+        for(Iterator<Message> it = queue.iterator(); it.hasNext();){
+            Message m = it.next();
+            if(m instanceof Message_Piece &&
+               ((Message_Piece) m).getIndex() == index &&
+               ((Message_Piece) m).getBegin() == begin &&
+               ((Message_Piece) m).getLength() == length){
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts this sender on a new thread created by the TaskRunner
+     */
+    public void start() {
+        TaskRunner.start(this, "MS_" + this.id, false);
+    }
+
+    /**
+     * Sends messages from the queue. While the queue is not empty, drains all
+     * the queued messages and sends them to the remote peer in one batch. If the
+     * queue is empty for more than 2 minutes, a keep-alive message is sent and
+     * the DownloadTask is advertised
      */
     public void run() {
-        Message out = null;
-        byte[] keep = new Message_PP(PeerProtocol.KEEP_ALIVE).generate();
+        ArrayList<Message> batch = new ArrayList<Message>(MAX_BATCH);
+        Message keep = new Message_PP(PeerProtocol.KEEP_ALIVE);
         try {
             while (this.run) {
-                if(this.outgoingMessage != null && this.os != null)
-                out = outgoingMessage.poll(120000, TimeUnit.MILLISECONDS);
+                Message out = this.outgoingMessage.poll(120000,
+                        TimeUnit.MILLISECONDS);
                 if(out != null){
-                    os.write(out.generate());
+                    batch.add(out);
+                    this.outgoingMessage.drainTo(batch, MAX_BATCH - 1);
+                    this.send(batch);
+                    batch.clear();
                     this.lmst = System.currentTimeMillis();
-                    out = null;
                 }else if(this.run){
-                    os.write(keep);
+                    batch.add(keep);
+                    this.send(batch);
+                    batch.clear();
                     this.fireKeepAliveSent();
                 }
             }
@@ -137,13 +214,94 @@ public class MessageSender extends Thread {
             this.outgoingMessage.clear();
         this.outgoingMessage = null;
         try{
-            this.os.close();
+            if(this.os != null)
+                this.os.close();
+            if(this.channel != null)
+                this.channel.close();
             this.os = null;
-            this.notify();
+            this.channel = null;
         }catch(Exception e){}
 
     }
 
+    /**
+     * Writes the given batch of messages to the remote peer. PIECE messages
+     * read from the files are transferred straight from the file to the socket
+     * when writing to a channel
+     * @param batch The messages to send
+     * @throws IOException If the connection has been closed, or if the block
+     * of a PIECE message could not be read
+     */
+    private void send(ArrayList<Message> batch) throws IOException {
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(batch.size() * 2);
+        long total = 0;
+        int calls = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Message m = batch.get(i);
+            if (this.channel != null && m instanceof Message_Piece) {
+                calls += this.write(buffers);
+                buffers.clear();
+                Message_Piece mp = (Message_Piece) m;
+                while (!mp.isDone()) {
+                    total += mp.transferTo(this.channel);
+                    calls++;
+                }
+                continue;
+            }
+            /**
+             * A PIECE message whose block cannot be read is not sent, since
+             * the peer would get corrupt data: the connection is closed
+             */
+            ByteBuffer[] b = (m instanceof Message_Piece) ?
+                    new ByteBuffer[] {ByteBuffer.wrap(
+                            ((Message_Piece) m).read())} : m.buffers();
+            for (int j = 0; j < b.length; j++) {
+                buffers.add(b[j]);
+                total += b[j].remaining();
+            }
+        }
+        calls += this.write(buffers);
+        this.stats.batchWritten(batch.size(), calls, total);
+    }
+
+    /**
+     * Writes the given buffers, with a gathering write on the channel or
+     * through the buffered stream, which is then flushed
+     * @param buffers The buffers to write
+     * @return int The number of write calls made on the socket
+     * @throws IOException If the connection has been closed
+     */
+    private int write(ArrayList<ByteBuffer> buffers) throws IOException {
+        if (buffers.isEmpty())
+            return 0;
+        if (this.channel != null) {
+            ByteBuffer[] all = buffers.toArray(new ByteBuffer[buffers.size()]);
+            int calls = 0;
+            int offset = 0;
+            while (offset < all.length) {
+                this.channel.write(all, offset, all.length - offset);
+                calls++;
+                while (offset < all.length && !all[offset].hasRemaining())
+                    offset++;
+            }
+            return calls;
+        }
+        long calls = this.counter.getWriteCalls();
+        for (int i = 0; i < buffers.size(); i++) {
+            ByteBuffer b = buffers.get(i);
+            if (b.hasArray())
+                this.os.write(b.array(), b.arrayOffset() + b.position(),
+                              b.remaining());
+            else {
+                byte[] temp = new byte[b.remaining()];
+                b.get(temp);
+                this.os.write(temp);
+            }
+        }
+        this.os.flush();
+        return (int) (this.counter.getWriteCalls() - calls);
+    }
+
     /**
      * Sets the 'run' variable to false, causing the thread to stop on its next
      * loop.
@@ -152,4 +310,28 @@ public class MessageSender extends Thread {
         this.run = false;
     }
 
+    /**
+     * Stream counting the write calls made on the underlying socket stream
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long writeCalls = 0;
+
+        CountingOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        long getWriteCalls() {
+            return this.writeCalls;
+        }
+
+        public void write(int b) throws IOException {
+            this.writeCalls++;
+            this.out.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.writeCalls++;
+            this.out.write(b, off, len);
+        }
+    }
 }
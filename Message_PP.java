@@ -37,6 +37,8 @@
 
 package jBittorrentAPI;
 
+import java.nio.ByteBuffer;
+
 /**
  *
  * Represent a Peer Protocol message according to Bittorrent protocol specifications.
@@ -49,6 +51,13 @@ public class Message_PP extends Message {
     private byte[] length = new byte[4];
     private byte[] id = new byte[1];
     private byte[] payload;
+    /**
+     * Block of a PIECE message, when the message has been created from a
+     * buffer. In that case, the payload is only built if requested
+     */
+    private ByteBuffer block = null;
+    private int blockIndex;
+    private int blockBegin;
 
     public Message_PP(){
         super();
@@ -82,9 +91,63 @@ public class Message_PP extends Message {
     }
 
     public byte[] getPayload() {
+        if (this.payload == null && this.block != null) {
+            ByteBuffer b = ByteBuffer.allocate(8 + this.block.remaining());
+            b.putInt(this.blockIndex).putInt(this.blockBegin);
+            b.put(this.block.duplicate());
+            this.payload = b.array();
+        }
         return this.payload;
     }
 
+    /**
+     * Returns the block of data of a PIECE message, without copying it
+     * @return ByteBuffer
+     */
+    public ByteBuffer getBlock() {
+        if (this.block == null && this.payload != null)
+            return ByteBuffer.wrap(this.payload, 8, this.payload.length - 8).
+                    slice();
+        return this.block.duplicate();
+    }
+
+    /**
+     * Returns the piece index of a PIECE message
+     * @return int
+     */
+    public int getBlockIndex() {
+        if (this.block == null)
+            return Utils.byteArrayToInt(Utils.subArray(this.payload, 0, 4));
+        return this.blockIndex;
+    }
+
+    /**
+     * Returns the offset within the piece of a PIECE message
+     * @return int
+     */
+    public int getBlockBegin() {
+        if (this.block == null)
+            return Utils.byteArrayToInt(Utils.subArray(this.payload, 4, 4));
+        return this.blockBegin;
+    }
+
+    /**
+     * Make this message a PIECE message holding the given block. The block is
+     * not copied.
+     * @param index The piece index
+     * @param begin The offset of the block within the piece
+     * @param block The block of data
+     */
+    public void setBlock(int index, int begin, ByteBuffer block) {
+        this.type = PeerProtocol.PIECE;
+        this.length = Utils.intToByteArray(9 + block.remaining());
+        this.id[0] = PeerProtocol.PIECE - 1;
+        this.payload = null;
+        this.block = block;
+        this.blockIndex = index;
+        this.blockBegin = begin;
+    }
+
     public void setLength(byte[] length) {
         this.length = length;
     }
@@ -95,10 +158,13 @@ public class Message_PP extends Message {
 
     public void setPayload(byte[] payload) {
         this.payload = payload;
+        this.block = null;
     }
 
     public void setData(int type) {
         this.type = type;
+        this.payload = null;
+        this.block = null;
         switch (type) {
         case 0:
             this.length = new byte[] {0, 0, 0, 0};
@@ -124,6 +190,7 @@ public class Message_PP extends Message {
 
     public void setData(int type, byte[] payload) {
         this.type = type;
+        this.block = null;
         switch (type) {
         case 5:
             this.length = new byte[] {0, 0, 0, 5};
@@ -162,18 +229,40 @@ public class Message_PP extends Message {
         this.length = length;
         this.id[0] = id;
         this.payload = payload;
+        this.block = null;
     }
 
     public byte[] generate() {
         if (this.type > 4)
             return Utils.concat(Utils.concat(this.length, this.id),
-                                this.payload);
+                                this.getPayload());
         else if (this.type > 0)
             return Utils.concat(this.length, this.id);
         else
             return this.length;
     }
 
+    /**
+     * Returns the length prefix and id, followed by the payload or block,
+     * without concatenating them
+     * @return ByteBuffer[]
+     */
+    public ByteBuffer[] buffers() {
+        if (this.type == 0)
+            return new ByteBuffer[] {ByteBuffer.wrap(this.length)};
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.put(this.length).put(this.id).flip();
+        if (this.type <= 4)
+            return new ByteBuffer[] {header};
+        if (this.block != null) {
+            ByteBuffer b = ByteBuffer.allocate(13);
+            b.put(this.length).put(this.id).putInt(this.blockIndex).
+                    putInt(this.blockBegin).flip();
+            return new ByteBuffer[] {b, this.block.duplicate()};
+        }
+        return new ByteBuffer[] {header, ByteBuffer.wrap(this.payload)};
+    }
+
     public String toString() {
         String toString = "";
 
@@ -196,9 +285,9 @@ public class Message_PP extends Message {
                     toString += "<length=" + Utils.byteArrayToInt(Utils.subArray(this.payload,8,4)) +">";
                     break;
                 case PeerProtocol.PIECE:
-                    toString += "<index=" + Utils.byteArrayToInt(Utils.subArray(this.payload,0,4)) +">";
-                    toString += "<begin=" + Utils.byteArrayToInt(Utils.subArray(this.payload,4,4)) +">";
-                    toString += "<block= "+(this.payload.length-8)+"bytes>";
+                    toString += "<index=" + this.getBlockIndex() +">";
+                    toString += "<begin=" + this.getBlockBegin() +">";
+                    toString += "<block= "+this.getBlock().remaining()+"bytes>";
                     break;
                 case PeerProtocol.CANCEL:
                     toString += "<index=" + Utils.byteArrayToInt(Utils.subArray(this.payload,0,4)) +">";
@@ -0,0 +1,244 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * PIECE message whose block is not held in memory but read straight from the
+ * file(s) it belongs to when the message is sent. The 13 bytes header is
+ * written first, then each file region is transferred to the socket with
+ * Storage.transferTo, which lets the storage send the data without copying
+ * it into the heap when it can. A message can also be created from a block
+ * already in memory, e.g. in the piece cache, in which case the block is
+ * written from the buffer.
+ *
+ * A block may span several files, in which case it is made of several regions.
+ * A message keeps track of what has already been written, so that it can be
+ * sent in several calls on a non-blocking channel. It must therefore only be
+ * sent once.
+ */
+public class Message_Piece extends Message {
+    private final int index;
+    private final int begin;
+    private final int length;
+    private final ByteBuffer header;
+    private final Storage storage;
+    private final int[] files;
+    private final long[] positions;
+    private final long[] counts;
+    private final ByteBuffer block;
+    private int region = 0;
+    private long regionDone = 0;
+
+    /**
+     * Create a PIECE message for the given block
+     * @param index The piece index
+     * @param begin The offset of the block within the piece
+     * @param storage The storage of the torrent files
+     * @param files The indexes of the files the block is stored in, in order
+     * @param positions The position of the block part in each file
+     * @param counts The number of bytes of the block in each file
+     */
+    public Message_Piece(int index, int begin, Storage storage, int[] files,
+                         long[] positions, long[] counts) {
+        super(PeerProtocol.PIECE, 0);
+        this.index = index;
+        this.begin = begin;
+        long l = 0;
+        for (int i = 0; i < counts.length; i++)
+            l += counts[i];
+        this.length = (int) l;
+        this.storage = storage;
+        this.files = files;
+        this.positions = positions;
+        this.counts = counts;
+        this.block = null;
+        this.header = ByteBuffer.allocate(13);
+        this.header.putInt(9 + this.length).put((byte) (PeerProtocol.PIECE - 1)).
+                putInt(index).putInt(begin).flip();
+    }
+
+    /**
+     * Create a PIECE message for the given block, already in memory
+     * @param index The piece index
+     * @param begin The offset of the block within the piece
+     * @param block The data of the block, from its position to its limit
+     */
+    public Message_Piece(int index, int begin, ByteBuffer block) {
+        super(PeerProtocol.PIECE, 0);
+        this.index = index;
+        this.begin = begin;
+        this.length = block.remaining();
+        this.storage = null;
+        this.files = new int[0];
+        this.positions = new long[0];
+        this.counts = new long[0];
+        this.block = block.duplicate();
+        this.header = ByteBuffer.allocate(13);
+        this.header.putInt(9 + this.length).put((byte) (PeerProtocol.PIECE - 1)).
+                putInt(index).putInt(begin).flip();
+    }
+
+    /**
+     * Returns the piece index
+     * @return int
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Returns the offset of the block within the piece
+     * @return int
+     */
+    public int getBegin() {
+        return this.begin;
+    }
+
+    /**
+     * Returns the length of the block
+     * @return int
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns true if the whole message has been written
+     * @return boolean
+     */
+    public boolean isDone() {
+        return !this.header.hasRemaining() && this.region >= this.files.length &&
+                (this.block == null || !this.block.hasRemaining());
+    }
+
+    /**
+     * Writes as much of the message as the channel accepts. On a blocking
+     * channel, this writes a whole region of the block at once.
+     * @param ch The channel connected to the remote peer
+     * @return long The number of bytes written
+     * @throws IOException If the channel is closed or the file is too short
+     */
+    public long transferTo(WritableByteChannel ch) throws IOException {
+        long written = 0;
+        if (this.header.hasRemaining()) {
+            written += ch.write(this.header);
+            if (this.header.hasRemaining())
+                return written;
+        }
+        if (this.block != null)
+            return written + ch.write(this.block);
+        while (this.region < this.files.length) {
+            int file = this.files[this.region];
+            long position = this.positions[this.region] + this.regionDone;
+            long n = this.storage.transferTo(file, position,
+                    this.counts[this.region] - this.regionDone, ch);
+            if (n <= 0) {
+                if (position >= this.storage.size(file))
+                    throw new EOFException("Block " + this.begin + " of piece " +
+                                           this.index + " is not on disk");
+                return written;
+            }
+            written += n;
+            this.regionDone += n;
+            if (this.regionDone < this.counts[this.region])
+                return written;
+            this.region++;
+            this.regionDone = 0;
+        }
+        return written;
+    }
+
+    /**
+     * Reads the block from the file(s) and returns the whole message. Used when
+     * the message is written to a stream rather than a channel
+     * @return byte[]
+     * @throws IOException If the block could not be read, in which case the
+     * message must not be sent
+     */
+    public byte[] read() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(13 + this.length);
+        b.put(this.header.duplicate());
+        if (this.block != null)
+            return b.put(this.block.duplicate()).array();
+        try {
+            for (int i = 0; i < this.files.length; i++) {
+                long position = this.positions[i];
+                int end = b.position() + (int) this.counts[i];
+                b.limit(end);
+                while (b.hasRemaining()) {
+                    int read = this.storage.read(this.files[i], position, b);
+                    if (read < 0)
+                        throw new EOFException("End of file reached");
+                    position += read;
+                }
+                b.limit(b.capacity());
+            }
+        } catch (IOException ioe) {
+            throw new IOException("Could not read block " + this.begin +
+                                  " of piece " + this.index + ": " +
+                                  ioe.getMessage(), ioe);
+        }
+        return b.array();
+    }
+
+    /**
+     * Reads the block from the file(s) and returns the whole message
+     * @return byte[] null if the block could not be read
+     */
+    public byte[] generate() {
+        try {
+            return this.read();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return null;
+        }
+    }
+
+    public String toString() {
+        return "<length=" + (9 + this.length) + "><id=" + (PeerProtocol.PIECE - 1) +
+                "><index=" + this.index + "><begin=" + this.begin + "><block= " +
+                this.length + ((this.block == null) ? "bytes from file>" :
+                                                    "bytes>");
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.swing.event.EventListenerList;
+
+/**
+ * Non-blocking connection to a remote peer, driven by one of the selector loops
+ * of a NIOEngine. It replaces the MessageSender/MessageReceiver thread pair:
+ * incoming data is framed into Message_HS and Message_PP objects that are passed
+ * to the IncomingListeners, and outgoing messages are queued and written when
+ * the socket is writable, all the queued messages being written with a single
+ * gathering write. OutgoingListeners receive the same connectionClosed
+ * and keepAliveSent events as with the MessageSender.
+ */
+public class NIOConnection {
+    private static final long KEEP_ALIVE_DELAY = 120000;
+    private static final int MAX_BATCH = 64;
+
+    private final String id;
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private NIOEngine.SelectorLoop loop = null;
+
+    private final MessageDecoder decoder;
+    private final ConcurrentLinkedQueue<Message> outgoingMessage;
+    /**
+     * Buffers of the batch being written, only accessed by the selector loop
+     */
+    private final ArrayList<ByteBuffer> writing = new ArrayList<ByteBuffer>();
+    private int writingMessages = 0;
+    /**
+     * PIECE message being transferred from the file(s), once the buffers
+     * queued before it have been written
+     */
+    private Message_Piece transferring = null;
+    private final SendStatistics stats = new SendStatistics();
+
+    private volatile boolean closed = false;
+    private volatile long lmst = 0;
+    private final EventListenerList listeners = new EventListenerList();
+
+    /**
+     * Create a new connection for the given peer
+     * @param id The id of the peer this connection is bound to
+     */
+    public NIOConnection(String id) {
+        this(id, new MessageDecoder());
+    }
+
+    /**
+     * Create a new connection for the given peer, using the given decoder
+     * @param id The id of the peer this connection is bound to
+     * @param decoder The decoder that frames the received data into messages
+     */
+    public NIOConnection(String id, MessageDecoder decoder) {
+        this.id = id;
+        this.decoder = decoder;
+        this.outgoingMessage = new ConcurrentLinkedQueue<Message>();
+        this.lmst = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the id of the peer this connection is bound to
+     * @return String
+     */
+    public String getID() {
+        return this.id;
+    }
+
+    /**
+     * Returns the counters of messages, batches and write calls of this
+     * connection
+     * @return SendStatistics
+     */
+    public SendStatistics getStatistics() {
+        return this.stats;
+    }
+
+    /**
+     * Returns true if this connection has been closed
+     * @return boolean
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Called by the selector loop once the channel has been registered
+     * @param loop The loop driving this connection
+     * @param channel The socket channel
+     * @param key The selection key of the channel
+     */
+    void attach(NIOEngine.SelectorLoop loop, SocketChannel channel,
+                SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * Returns the selection key of the channel, null if not yet registered
+     * @return SelectionKey
+     */
+    SelectionKey getKey() {
+        return this.key;
+    }
+
+    /**
+     * Returns the interest set this connection needs once connected
+     * @return int
+     */
+    int interestOps() {
+        if (!this.writing.isEmpty() || this.transferring != null ||
+            !this.outgoingMessage.isEmpty())
+            return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        return SelectionKey.OP_READ;
+    }
+
+    public void addIncomingListener(IncomingListener listener) {
+        listeners.add(IncomingListener.class, listener);
+    }
+
+    public void removeIncomingListener(IncomingListener listener) {
+        listeners.remove(IncomingListener.class, listener);
+    }
+
+    public IncomingListener[] getIncomingListeners() {
+        return listeners.getListeners(IncomingListener.class);
+    }
+
+    public void addOutgoingListener(OutgoingListener listener) {
+        listeners.add(OutgoingListener.class, listener);
+    }
+
+    public void removeOutgoingListener(OutgoingListener listener) {
+        listeners.remove(OutgoingListener.class, listener);
+    }
+
+    public OutgoingListener[] getOutgoingListeners() {
+        return listeners.getListeners(OutgoingListener.class);
+    }
+
+    protected void fireMessageReceived(Message m) {
+        for (IncomingListener listener : getIncomingListeners()) {
+            listener.messageReceived(m);
+        }
+    }
+
+    protected void fireConnectionClosed() {
+        for (OutgoingListener listener : getOutgoingListeners()) {
+            listener.connectionClosed();
+        }
+    }
+
+    protected void fireKeepAliveSent() {
+        for (OutgoingListener listener : getOutgoingListeners()) {
+            listener.keepAliveSent();
+        }
+    }
+
+    /**
+     * Puts the message in parameter in the queue, waiting to be sent. The
+     * selector loop is woken up so that it starts watching for writability.
+     * @param m Message
+     */
+    public void addMessageToQueue(Message m) {
+        if (this.closed)
+            return;
+        this.outgoingMessage.add(m);
+        this.lmst = System.currentTimeMillis();
+        if (this.loop != null)
+            this.loop.requestWrite(this);
+    }
+
+    /**
+     * Removes the PIECE message for the given block from the queue, if it has
+     * not been sent yet
+     * @param index The piece index
+     * @param begin The offset of the block within the piece
+     * @param length The length of the block
+     * @return boolean True if the message has been removed
+     */
+    public boolean cancelPiece(int index, int begin, int length) {
+        for (Iterator<Message> it = this.outgoingMessage.iterator(); it.hasNext(); ) {
+            Message m = it.next();
+            if (m instanceof Message_Piece &&
+                ((Message_Piece) m).getIndex() == index &&
+                ((Message_Piece) m).getBegin() == begin &&
+                ((Message_Piece) m).getLength() == length) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the selector loop when the channel has finished connecting
+     * @throws IOException If the connection could not be established
+     */
+    void finishConnect() throws IOException {
+        this.channel.finishConnect();
+        this.key.interestOps(this.interestOps());
+    }
+
+    /**
+     * Called by the selector loop when the channel is readable. Reads as much
+     * data as available, then fires as many messages as the read data contains.
+     */
+    void read() {
+        try {
+            if (this.decoder.read(this.channel) == -1) {
+                this.close();
+                this.fireMessageReceived(null);
+                return;
+            }
+            Message m;
+            while (!this.closed && (m = this.decoder.next()) != null)
+                this.fireMessageReceived(m);
+        } catch (IOException ioe) {
+            this.close();
+            this.fireMessageReceived(null);
+        }
+    }
+
+    /**
+     * Called by the selector loop when the channel is writable. Drains the
+     * queued messages and writes them with gathering writes, until the queue is
+     * empty or the socket buffer is full. PIECE messages read from the files are
+     * transferred straight from the file to the socket.
+     */
+    void write() {
+        try {
+            int calls = 0;
+            long bytes = 0;
+            while (true) {
+                if (this.writing.isEmpty() && this.transferring != null) {
+                    bytes += this.transferring.transferTo(this.channel);
+                    calls++;
+                    if (!this.transferring.isDone()) {
+                        this.stats.written(calls, bytes);
+                        return;
+                    }
+                    this.transferring = null;
+                    this.stats.batchWritten(1, calls, bytes);
+                    calls = 0;
+                    bytes = 0;
+                }
+                if (this.writing.isEmpty()) {
+                    Message m;
+                    int n = 0;
+                    while (n < MAX_BATCH &&
+                           (m = this.outgoingMessage.poll()) != null) {
+                        if (m instanceof Message_Piece) {
+                            this.transferring = (Message_Piece) m;
+                            break;
+                        }
+                        ByteBuffer[] b = m.buffers();
+                        for (int i = 0; i < b.length; i++)
+                            this.writing.add(b[i]);
+                        n++;
+                    }
+                    if (n == 0) {
+                        if (this.transferring != null)
+                            continue;
+                        break;
+                    }
+                    this.writingMessages = n;
+                }
+                bytes += this.channel.write(this.writing.toArray(
+                        new ByteBuffer[this.writing.size()]));
+                calls++;
+                int done = 0;
+                while (done < this.writing.size() &&
+                       !this.writing.get(done).hasRemaining())
+                    done++;
+                this.writing.subList(0, done).clear();
+                if (!this.writing.isEmpty()) {
+                    this.stats.written(calls, bytes);
+                    return;
+                }
+                this.stats.batchWritten(this.writingMessages, calls, bytes);
+                calls = 0;
+                bytes = 0;
+            }
+            if (this.outgoingMessage.isEmpty())
+                this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ioe) {
+            this.close();
+            this.fireConnectionClosed();
+        }
+    }
+
+    /**
+     * Called periodically by the selector loop. If nothing has been sent to
+     * the remote peer for 2 minutes, a keep-alive message is queued and the
+     * listeners are advertised
+     * @param now long
+     */
+    void checkKeepAlive(long now) {
+        if (now - this.lmst > KEEP_ALIVE_DELAY) {
+            this.addMessageToQueue(new Message_PP(PeerProtocol.KEEP_ALIVE));
+            this.fireKeepAliveSent();
+        }
+    }
+
+    /**
+     * Called by the selector loop when the connection to the remote peer
+     * could not be established or failed
+     */
+    void failed() {
+        this.close();
+        this.fireConnectionClosed();
+    }
+
+    /**
+     * Closes the channel and clears the outgoing queue. No event is fired.
+     */
+    public void close() {
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.outgoingMessage.clear();
+        if (this.key != null)
+            this.key.cancel();
+        try {
+            if (this.channel != null)
+                this.channel.close();
+        } catch (IOException ioe) {}
+        if (this.loop != null)
+            this.loop.remove(this);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connection engine driving the sockets of many peers with a small fixed pool
+ * of Selector event loops, instead of a sender and a receiver thread per peer.
+ * Each registered NIOConnection is bound to one loop for its whole life, and all
+ * its reads, writes and listener events happen on that loop's thread.
+ *
+ * An engine can be shared between several DownloadManager. Once shut down,
+ * an engine cannot be started again.
+ */
+public class NIOEngine {
+
+    private final SelectorLoop[] loops;
+    private int next = 0;
+    private boolean started = false;
+    private boolean shutdown = false;
+
+    /**
+     * Create an engine with one selector loop per available processor
+     * @throws IOException If a selector could not be opened
+     */
+    public NIOEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an engine with the given number of selector loops
+     * @param nbLoops int
+     * @throws IOException If a selector could not be opened
+     */
+    public NIOEngine(int nbLoops) throws IOException {
+        this.loops = new SelectorLoop[Math.max(1, nbLoops)];
+        for (int i = 0; i < this.loops.length; i++)
+            this.loops[i] = new SelectorLoop(i);
+    }
+
+    /**
+     * Starts the selector loops. Called automatically on first registration.
+     * @throws IllegalStateException If the engine has been shut down
+     */
+    public synchronized void start() {
+        if (this.shutdown)
+            throw new IllegalStateException("The engine has been shut down");
+        if (this.started)
+            return;
+        this.started = true;
+        for (int i = 0; i < this.loops.length; i++)
+            this.loops[i].start();
+    }
+
+    /**
+     * Stops all the selector loops and closes all the connections they drive.
+     * The engine cannot be used afterwards
+     */
+    public synchronized void shutdown() {
+        for (int i = 0; i < this.loops.length; i++)
+            this.loops[i].shutdown();
+        this.started = false;
+        this.shutdown = true;
+    }
+
+    /**
+     * Returns the number of connections currently driven by this engine
+     * @return int
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (int i = 0; i < this.loops.length; i++)
+            count += this.loops[i].connections.size();
+        return count;
+    }
+
+    /**
+     * Open a non-blocking connection to the given address. The result of the
+     * connection is reported to the NIOConnection listeners: if it fails,
+     * connectionClosed is fired. A connection established at once (e.g. on
+     * the loopback interface) is registered as an accepted one
+     * @param ip String
+     * @param port int
+     * @param c The connection that will drive the channel
+     * @throws IOException If the channel could not be created, or if the
+     * engine has been shut down
+     */
+    public void connect(String ip, int port, NIOConnection c) throws
+            IOException {
+        SelectorLoop loop = this.nextLoop();
+        SocketChannel sc = SocketChannel.open();
+        sc.configureBlocking(false);
+        boolean connected;
+        try {
+            connected = sc.connect(new InetSocketAddress(ip, port));
+        } catch (IOException ioe) {
+            sc.close();
+            throw ioe;
+        }
+        loop.register(sc, c, !connected);
+    }
+
+    /**
+     * Register an already connected channel (e.g. accepted by the
+     * ConnectionListener) to be driven by this engine
+     * @param sc SocketChannel
+     * @param c NIOConnection
+     * @throws IOException If the channel could not be made non-blocking, or
+     * if the engine has been shut down
+     */
+    public void register(SocketChannel sc, NIOConnection c) throws
+            IOException {
+        sc.configureBlocking(false);
+        this.nextLoop().register(sc, c, false);
+    }
+
+    private synchronized SelectorLoop nextLoop() throws IOException {
+        if (this.shutdown)
+            throw new IOException("The engine has been shut down");
+        if (!this.started)
+            this.start();
+        SelectorLoop l = this.loops[this.next];
+        this.next = (this.next + 1) % this.loops.length;
+        return l;
+    }
+
+    /**
+     * Thread running one selector and all the connections registered on it
+     */
+    static class SelectorLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Object[]> registrations =
+                new ConcurrentLinkedQueue<Object[]>();
+        private final ConcurrentLinkedQueue<NIOConnection> writeRequests =
+                new ConcurrentLinkedQueue<NIOConnection>();
+        private final Set<NIOConnection> connections = Collections.
+                synchronizedSet(new HashSet<NIOConnection>());
+        private volatile boolean run = true;
+        private long lastKeepAliveCheck = 0;
+
+        SelectorLoop(int i) throws IOException {
+            this.selector = Selector.open();
+            this.setName("NIO_" + i);
+            this.setDaemon(true);
+        }
+
+        void register(SocketChannel sc, NIOConnection c, boolean connecting) {
+            this.registrations.add(new Object[] {sc, c, connecting});
+            this.selector.wakeup();
+        }
+
+        void requestWrite(NIOConnection c) {
+            if (Thread.currentThread() == this) {
+                this.enableWrite(c);
+                return;
+            }
+            this.writeRequests.add(c);
+            this.selector.wakeup();
+        }
+
+        void remove(NIOConnection c) {
+            this.connections.remove(c);
+        }
+
+        void shutdown() {
+            this.run = false;
+            this.selector.wakeup();
+        }
+
+        private void enableWrite(NIOConnection c) {
+            SelectionKey k = c.isClosed() ? null : c.getKey();
+            if (k != null && k.isValid() &&
+                (k.interestOps() & SelectionKey.OP_CONNECT) == 0)
+                k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void processRegistrations() {
+            Object[] r;
+            while ((r = this.registrations.poll()) != null) {
+                SocketChannel sc = (SocketChannel) r[0];
+                NIOConnection c = (NIOConnection) r[1];
+                boolean connecting = ((Boolean) r[2]).booleanValue();
+                try {
+                    SelectionKey k = sc.register(this.selector,
+                            connecting ? SelectionKey.OP_CONNECT :
+                            c.interestOps(), c);
+                    c.attach(this, sc, k);
+                    this.connections.add(c);
+                } catch (IOException ioe) {
+                    try {
+                        sc.close();
+                    } catch (IOException e) {}
+                    c.failed();
+                }
+            }
+            NIOConnection c;
+            while ((c = this.writeRequests.poll()) != null)
+                this.enableWrite(c);
+        }
+
+        public void run() {
+            while (this.run) {
+                try {
+                    this.selector.select(1000);
+                    this.processRegistrations();
+                    for (Iterator<SelectionKey> it = this.selector.
+                            selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        NIOConnection c = (NIOConnection) k.attachment();
+                        if (!k.isValid())
+                            continue;
+                        try {
+                            if (k.isConnectable()) {
+                                c.finishConnect();
+                                continue;
+                            }
+                        } catch (IOException ioe) {
+                            c.failed();
+                            continue;
+                        }
+                        if (k.isReadable())
+                            c.read();
+                        if (k.isValid() && k.isWritable())
+                            c.write();
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - this.lastKeepAliveCheck > 1000) {
+                        this.lastKeepAliveCheck = now;
+                        NIOConnection[] all;
+                        synchronized (this.connections) {
+                            all = this.connections.toArray(
+                                    new NIOConnection[0]);
+                        }
+                        for (int i = 0; i < all.length; i++)
+                            all[i].checkKeepAlive(now);
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error in selector loop " +
+                                       this.getName() + ": " + e.getMessage());
+                }
+            }
+            NIOConnection[] all;
+            synchronized (this.connections) {
+                all = this.connections.toArray(new NIOConnection[0]);
+            }
+            for (int i = 0; i < all.length; i++)
+                all[i].close();
+            try {
+                this.selector.close();
+            } catch (IOException ioe) {}
+        }
+    }
+}
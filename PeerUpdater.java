@@ -46,6 +46,9 @@ import java.io.BufferedInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Class providing methods to enable communication between the client and a tracker.
@@ -54,7 +57,7 @@ import java.net.URLConnection;
  * @author Baptiste Dubuis
  * @version 0.1
  */
-public class PeerUpdater extends Thread {
+public class PeerUpdater implements Runnable {
     private LinkedHashMap<String, Peer> peerList;
     private byte[] id;
     private TorrentFile torrent;
@@ -69,7 +72,9 @@ public class PeerUpdater extends Thread {
     private int interval = 150;
     private int minInterval = 0;
     private boolean first = true;
-    private boolean end = false;
+    private volatile boolean end = false;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wakeUp = lock.newCondition();
 
 
     private final EventListenerList listeners = new EventListenerList();
@@ -79,8 +84,13 @@ public class PeerUpdater extends Thread {
         this.id = id;
         this.torrent = torrent;
         this.left = torrent.total_length;
-        this.setDaemon(true);
-        //this.start();
+    }
+
+    /**
+     * Starts the updates on a new daemon thread created by the TaskRunner
+     */
+    public void start() {
+        TaskRunner.start(this, "PU_" + this.torrent.info_hash_as_hex, true);
     }
 
     public void setListeningPort(int port){
@@ -181,6 +191,24 @@ public class PeerUpdater extends Thread {
         this.left = left;
     }
 
+    /**
+     * Decreases the # of bytes still to download, for data found in the files
+     * rather than downloaded
+     * @param found long
+     */
+    public synchronized void decreaseLeft(long found) {
+        this.left -= found;
+    }
+
+    /**
+     * Increases the # of bytes still to download, for downloaded data that
+     * has been lost
+     * @param lost long
+     */
+    public synchronized void increaseLeft(long lost) {
+        this.left += lost;
+    }
+
     /**
      * Sets the current state of the client
      * @param event String
@@ -217,7 +245,6 @@ public class PeerUpdater extends Thread {
      */
     public void run() {
         int tryNB = 0;
-        byte[] b = new byte[0];
         while (!this.end) {
             tryNB++;
 
@@ -232,21 +259,28 @@ public class PeerUpdater extends Thread {
                 }
                 tryNB = 0;
                 this.fireUpdatePeerList(this.peerList);
-                try {
-                    synchronized (b) {
-                        b.wait(interval * 1000);
-                    }
-                } catch (InterruptedException ie) {}
+                this.pause(interval * 1000);
             } else {
-                try {
-                    synchronized (b) {
-                        b.wait(2000);
-                    }
-                } catch (InterruptedException ie) {}
+                this.pause(2000);
             }
         }
     }
 
+    /**
+     * Waits for the given time, or until end() is called
+     * @param millis long
+     */
+    private void pause(long millis) {
+        this.lock.lock();
+        try {
+            if (!this.end)
+                this.wakeUp.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
     /**
      * Process the map representing the tracker response, which should contain
      * either an error message or the peers list and other information such as
@@ -324,9 +358,9 @@ public class PeerUpdater extends Thread {
      * @param event String
      * @return A Map containing the decoded tracker response
      */
-    public synchronized Map contactTracker(byte[] id,
-                                           TorrentFile t, long dl, long ul,
-                                           long left, String event) {
+    public Map contactTracker(byte[] id,
+                              TorrentFile t, long dl, long ul,
+                              long left, String event) {
         try {
             URL source = new URL(t.announceURL + "?info_hash=" +
                                  t.info_hash_as_url + "&peer_id=" +
@@ -369,6 +403,12 @@ public class PeerUpdater extends Thread {
     public void end() {
         this.event = "&event=stopped";
         this.end = true;
+        this.lock.lock();
+        try {
+            this.wakeUp.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
         this.contactTracker(this.id, this.torrent, this.downloaded,
                             this.uploaded, this.left, "&event=stopped");
     }
@@ -38,6 +38,8 @@
 package jBittorrentAPI;
 
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 
 /**
  * Class representing a piece according to bittorrent definition.
@@ -48,7 +50,7 @@ import java.util.*;
  */
 public class Piece {
 
-    private TreeMap<Integer, Integer> filesAndoffset;
+    private TreeMap<Integer, Long> filesAndoffset;
     /**
      * Index of the piece within the file(s)
      */
@@ -58,17 +60,37 @@ public class Piece {
      */
     private int length;
     /**
-     * Map containing the piece data
+     * Buffer containing the piece data, each block being written at its
+     * offset. It is taken from the pool when the first block is set and given
+     * back when the data is cleared
      */
-    private TreeMap<Integer, byte[]> pieceBlock;
+    private ByteBuffer buffer;
+    private PieceBufferPool pool;
+    private BitSet received;
+    /**
+     * Digest of the data received contiguously from the start of the piece,
+     * updated as the blocks arrive, and the number of bytes it covers
+     */
+    private MessageDigest digest;
+    private int hashed = 0;
+    /**
+     * Size of the blocks requested to the peers, and blocks currently requested
+     */
+    private int blockSize;
+    private BitSet requested;
+    private boolean claimed = false;
     /**
      * SHA1 hash of the piece contained in the torrent file. At the end of the download
-     * this value must correspond to the SHA1 hash of the pieceBlock map concatenated
+     * this value must correspond to the SHA1 hash of the piece data
      */
     byte[] sha1;
 
     public Piece(int index, int length, int blockSize, byte[] sha1){
-        this(index, length, blockSize, sha1, null);
+        this(index, length, blockSize, sha1, null, null);
+    }
+
+    public Piece(int index, int length, int blockSize, byte[] sha1, TreeMap<Integer, Long> m){
+        this(index, length, blockSize, sha1, m, null);
     }
 
     /**
@@ -78,27 +100,107 @@ public class Piece {
      * @param blockSize Size of a block of data
      * @param sha1 SHA1 hash that must be verified at the end of download
      * @param m HashTable containing the file(s) this piece belongs to and the index in these
+     * @param pool The pool the data buffer is taken from, null to allocate it
      */
-    public Piece(int index, int length, int blockSize, byte[] sha1, TreeMap<Integer, Integer> m) {
+    public Piece(int index, int length, int blockSize, byte[] sha1, TreeMap<Integer, Long> m,
+                 PieceBufferPool pool) {
         this.index = index;
         this.length = length;
-        this.pieceBlock = new TreeMap<Integer, byte[]>();
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.requested = new BitSet(this.getNbBlocks());
+        this.received = new BitSet(this.getNbBlocks());
         this.sha1 = sha1;
         if(m != null)
             this.filesAndoffset = m;
         else
-            this.filesAndoffset = new TreeMap<Integer, Integer>();
+            this.filesAndoffset = new TreeMap<Integer, Long>();
+    }
+
+    /**
+     * Clears the received data and gives the buffer back to the pool
+     */
+    public synchronized void clearData(){
+        if(this.buffer != null && this.pool != null)
+            this.pool.release(this.buffer);
+        this.buffer = null;
+        if(this.digest != null)
+            this.digest.reset();
+        this.hashed = 0;
+        this.received.clear();
+        this.requested.clear();
+        this.claimed = false;
+    }
+
+    /**
+     * Returns the number of blocks of this piece
+     * @return int
+     */
+    public int getNbBlocks(){
+        return (this.length + this.blockSize - 1) / this.blockSize;
+    }
+
+    /**
+     * Returns the length of the block at the given offset
+     * @param offset int
+     * @return int
+     */
+    public int getBlockLength(int offset){
+        return Math.min(this.blockSize, this.length - offset);
+    }
+
+    /**
+     * Marks the first block that is neither requested nor received as requested
+     * and returns its offset. Several peers can thus download different blocks
+     * of the same piece
+     * @return int The offset of the block, -1 if all blocks are requested
+     */
+    public synchronized int requestBlock(){
+        int nb = this.getNbBlocks();
+        for(int b = this.requested.nextClearBit(0); b < nb;
+                    b = this.requested.nextClearBit(b + 1)){
+            this.requested.set(b);
+            if(!this.received.get(b))
+                return b * this.blockSize;
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the block at the given offset as not requested anymore, if it has
+     * not been received, so that it can be requested to another peer
+     * @param offset int
+     */
+    public synchronized void releaseBlock(int offset){
+        if(!this.received.get(offset / this.blockSize))
+            this.requested.clear(offset / this.blockSize);
+    }
+
+    /**
+     * Returns true if all the blocks of the piece are requested or received
+     * @return boolean
+     */
+    public synchronized boolean isFullyRequested(){
+        return this.requested.nextClearBit(0) >= this.getNbBlocks();
     }
 
-    public void clearData(){
-        this.pieceBlock.clear();
+    /**
+     * Returns true, only once, if all the blocks of the piece have been
+     * received. The task getting true verifies the piece
+     * @return boolean
+     */
+    public synchronized boolean claim(){
+        if(this.claimed || !this.isComplete())
+            return false;
+        this.claimed = true;
+        return true;
     }
 
-    public void setFileAndOffset(int file, int offset){
+    public void setFileAndOffset(int file, long offset){
         this.filesAndoffset.put(file, offset);
     }
 
-    public TreeMap getFileAndOffset(){
+    public TreeMap<Integer, Long> getFileAndOffset(){
         return this.filesAndoffset;
     }
 
@@ -124,27 +226,118 @@ public class Piece {
      * @param data Data to be set at the given offset
      */
     public synchronized void setBlock(int offset, byte[] data){
-        this.pieceBlock.put(offset, data);
+        this.setBlock(offset, ByteBuffer.wrap(data));
     }
 
     /**
-     * Returns the concatenated value of the pieceBlock map. This represent the piece data
+     * Set a block of data at the corresponding offset. The remaining bytes of
+     * the buffer are copied, so the buffer can be reused once this method returns.
+     * Data that does not cover whole blocks or goes past the end of the piece
+     * is ignored
+     * @param offset Offset of the data within the current piece
+     * @param data Data to be set at the given offset
+     */
+    public synchronized void setBlock(int offset, ByteBuffer data){
+        int len = data.remaining();
+        if(offset < 0 || offset % this.blockSize != 0 || len == 0 ||
+           offset + len > this.length ||
+           (len % this.blockSize != 0 && offset + len != this.length) ||
+           this.received.get(offset / this.blockSize))
+            return;
+        if(this.buffer == null)
+            this.buffer = (this.pool != null) ? this.pool.acquire(this.length) :
+                          ByteBuffer.allocate(this.length);
+        ByteBuffer dst = this.buffer.duplicate();
+        dst.position(offset);
+        dst.put(data);
+        int first = offset / this.blockSize;
+        int last = (offset + len + this.blockSize - 1) / this.blockSize;
+        this.requested.set(first, last);
+        this.received.set(first, last);
+        this.updateDigest();
+    }
+
+    /**
+     * Adds the blocks received contiguously after the hashed data to the digest
+     */
+    private void updateDigest(){
+        int end = Math.min(this.received.nextClearBit(0) * this.blockSize, this.length);
+        if(end <= this.hashed)
+            return;
+        if(this.digest == null)
+            this.digest = Utils.newSHA1();
+        ByteBuffer b = this.buffer.duplicate();
+        b.limit(end);
+        b.position(this.hashed);
+        this.digest.update(b);
+        this.hashed = end;
+    }
+
+    /**
+     * Returns true if the block at the given offset has been set
+     * @param offset int
+     * @return boolean
+     */
+    public synchronized boolean hasBlock(int offset){
+        return this.received.get(offset / this.blockSize);
+    }
+
+    /**
+     * Returns true if all the blocks of the piece have been set
+     * @return boolean
+     */
+    public synchronized boolean isComplete(){
+        return this.received.nextClearBit(0) >= this.getNbBlocks();
+    }
+
+    /**
+     * Returns the piece data. The buffer returned shares its content with the
+     * piece and is only valid until the data is cleared
+     * @return ByteBuffer
+     */
+    public synchronized ByteBuffer getData(){
+        if(this.buffer == null)
+            return ByteBuffer.allocate(0);
+        ByteBuffer b = this.buffer.duplicate();
+        b.clear();
+        b.limit(this.length);
+        return b;
+    }
+
+    /**
+     * Returns a copy of the piece data
      * @return byte[]
      */
     public synchronized byte[] data(){
-        byte[] data = new byte[0];
-        for(Iterator it = this.pieceBlock.keySet().iterator(); it.hasNext();)
-            data = Utils.concat(data, this.pieceBlock.get(it.next()));
+        ByteBuffer b = this.getData();
+        byte[] data = new byte[b.remaining()];
+        b.get(data);
         return data;
     }
 
     /**
      * Verify if the downloaded data corresponds to the original data contained in the torrent
-     * by comparing it to the SHA1 hash in the torrent
+     * by comparing it to the SHA1 hash in the torrent. The data has been hashed
+     * as the blocks were received, so only the digest is left to compute
      * @return boolean
      */
     public synchronized boolean verify(){
-        return Utils.byteArrayToByteString(Utils.hash(this.data())).matches(Utils.byteArrayToByteString(this.sha1));
+        if(!this.isComplete())
+            return false;
+        this.updateDigest();
+        byte[] hash = this.digest.digest();
+        this.hashed = 0;
+        return MessageDigest.isEqual(hash, this.sha1);
+    }
+
+    /**
+     * Returns true if the given SHA1 hash is the one contained in the torrent
+     * for this piece
+     * @param hash byte[]
+     * @return boolean
+     */
+    public boolean isHash(byte[] hash){
+        return MessageDigest.isEqual(hash, this.sha1);
     }
 
     /**
@@ -0,0 +1,148 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Bounded pool of reusable buffers holding the data of the pieces being
+ * downloaded. A piece takes a buffer when its first block is received and
+ * gives it back once it has been written to the disk or found corrupted, so
+ * that partial pieces do not allocate new arrays all the time.
+ *
+ * At most 'max' free buffers are kept, the buffers given back while the pool
+ * is full being left to the garbage collector. The buffers in use are
+ * counted, and the pool is exhausted once 'limit' of them are in use. The
+ * DownloadManager then starts no new piece until a buffer is given back.
+ * acquire() itself never waits, since it is called on the connection threads:
+ * the pieces already requested when the pool gets exhausted still get their
+ * buffer, so the limit can only be exceeded by these few pieces.
+ */
+public class PieceBufferPool {
+    private final int capacity;
+    private final int max;
+    private final int limit;
+    private int inUse = 0;
+    private final boolean direct;
+    private final LinkedList<ByteBuffer> free = new LinkedList<ByteBuffer>();
+
+    /**
+     * Create a new pool of buffers of the given size
+     * @param capacity The size of the buffers, i.e. the piece length
+     * @param max The maximal number of free buffers kept in the pool
+     * @param limit The number of buffers in use from which the pool is
+     * exhausted
+     * @param direct True if the buffers should be allocated out of the heap
+     */
+    public PieceBufferPool(int capacity, int max, int limit, boolean direct) {
+        this.capacity = capacity;
+        this.max = max;
+        this.limit = Math.max(1, limit);
+        this.direct = direct;
+    }
+
+    /**
+     * Returns a buffer of at least the given length, positioned at 0 and
+     * limited to the length. A new buffer is allocated if none is free, even
+     * if the pool is exhausted
+     * @param length int
+     * @return ByteBuffer
+     */
+    public ByteBuffer acquire(int length) {
+        ByteBuffer b = null;
+        synchronized (this.free) {
+            if (length <= this.capacity)
+                b = this.free.poll();
+            this.inUse++;
+        }
+        if (b == null)
+            b = this.direct ?
+                ByteBuffer.allocateDirect(Math.max(length, this.capacity)) :
+                ByteBuffer.allocate(Math.max(length, this.capacity));
+        b.clear();
+        b.limit(length);
+        return b;
+    }
+
+    /**
+     * Gives a buffer back to the pool
+     * @param b ByteBuffer
+     */
+    public void release(ByteBuffer b) {
+        if (b == null)
+            return;
+        synchronized (this.free) {
+            this.inUse--;
+            if (b.capacity() == this.capacity && this.free.size() < this.max)
+                this.free.add(b);
+        }
+    }
+
+    /**
+     * Returns true if the limit of buffers in use has been reached, in which
+     * case no new piece should be started
+     * @return boolean
+     */
+    public boolean isExhausted() {
+        synchronized (this.free) {
+            return this.inUse >= this.limit;
+        }
+    }
+
+    /**
+     * Returns the number of buffers in use
+     * @return int
+     */
+    public int getInUse() {
+        synchronized (this.free) {
+            return this.inUse;
+        }
+    }
+
+    /**
+     * Returns the number of free buffers in the pool
+     * @return int
+     */
+    public int size() {
+        synchronized (this.free) {
+            return this.free.size();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the data of complete pieces, used to serve the blocks
+ * requested by the remote peers. The first block request for a piece reads
+ * the whole piece at once, so that the next blocks of the piece are served
+ * from memory instead of being read one by one from the disk.
+ *
+ * The cache holds at most 'capacity' bytes. When a piece is added to a full
+ * cache, the least recently used pieces are evicted until it fits.
+ */
+public class PieceCache {
+    private final long capacity;
+    private final LinkedHashMap<Integer, ByteBuffer> pieces =
+            new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long bytesEvicted = 0;
+
+    /**
+     * Create a new cache holding at most the given number of bytes
+     * @param capacity The byte budget of the cache
+     */
+    public PieceCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a read-only view of the data of the piece, or null if the
+     * piece is not in the cache
+     * @param piece int
+     * @return ByteBuffer
+     */
+    public synchronized ByteBuffer get(int piece) {
+        ByteBuffer b = this.pieces.get(piece);
+        if (b == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return b.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns true if the piece is in the cache, without counting a lookup
+     * @param piece int
+     * @return boolean
+     */
+    public synchronized boolean contains(int piece) {
+        return this.pieces.containsKey(piece);
+    }
+
+    /**
+     * Adds the data of a piece to the cache, evicting the least recently used
+     * pieces if needed. Pieces larger than the whole cache are not kept
+     * @param piece int
+     * @param data The data of the piece, which must not be modified afterwards
+     */
+    public synchronized void put(int piece, ByteBuffer data) {
+        if (data.remaining() > this.capacity)
+            return;
+        this.remove(piece);
+        for (Iterator<Map.Entry<Integer, ByteBuffer>> it =
+                     this.pieces.entrySet().iterator();
+             it.hasNext() && this.size + data.remaining() > this.capacity; ) {
+            int l = it.next().getValue().remaining();
+            it.remove();
+            this.size -= l;
+            this.evictions++;
+            this.bytesEvicted += l;
+        }
+        this.pieces.put(piece, data);
+        this.size += data.remaining();
+    }
+
+    /**
+     * Removes a piece from the cache, e.g. because its data changed
+     * @param piece int
+     */
+    public synchronized void remove(int piece) {
+        ByteBuffer b = this.pieces.remove(piece);
+        if (b != null)
+            this.size -= b.remaining();
+    }
+
+    /**
+     * Removes all the pieces from the cache
+     */
+    public synchronized void clear() {
+        this.pieces.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Returns the byte budget of the cache
+     * @return long
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of bytes currently held
+     * @return long
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of pieces currently held
+     * @return int
+     */
+    public synchronized int getNbPieces() {
+        return this.pieces.size();
+    }
+
+    /**
+     * Returns the number of lookups that found their piece
+     * @return long
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find their piece
+     * @return long
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Returns the ratio of the lookups that found their piece, between 0 and 1
+     * @return float
+     */
+    public synchronized float getHitRatio() {
+        long total = this.hits + this.misses;
+        return (total == 0) ? 0 : (float) this.hits / total;
+    }
+
+    /**
+     * Returns the number of pieces evicted to make room for others
+     * @return long
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Returns the number of bytes evicted to make room for other pieces
+     * @return long
+     */
+    public synchronized long getBytesEvicted() {
+        return this.bytesEvicted;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.event.EventListenerList;
+
+/**
+ * Checks which pieces are already present in the files, e.g. when a download
+ * is restarted. The pieces are hashed in parallel by several threads, which
+ * take them in index order, i.e. in the order of their offset in the files,
+ * so that the reads stay close to each other on the disk.
+ *
+ * The data is read with large positional reads into one buffer per thread,
+ * reused for all the pieces. The files are not mapped, since a mapping per
+ * piece would only be released by the garbage collector and a check of a
+ * large download would exhaust the mappings allowed to the process.
+ *
+ * The check can run in the background while the download goes on. The
+ * checking threads then have the lowest priority, and wait for a while
+ * before each piece when live disk traffic has been reported, so that the
+ * uploads and downloads get the disk first.
+ */
+public class PieceChecker {
+    private static final int READ_SIZE = 4 << 20;
+
+    private final Piece[] pieces;
+    private final Storage storage;
+    private final long[] fileLengths;
+    private final int threads;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger complete = new AtomicInteger();
+    private volatile boolean background = false;
+    private volatile boolean done = false;
+    private volatile long lastLiveIO = 0;
+    private long pause = 0;
+    private final EventListenerList listeners = new EventListenerList();
+
+    /**
+     * Create a new checker for the given pieces
+     * @param pieces The pieces to check, with their files and offsets set
+     * @param storage The storage of the files, indexed as in the pieces
+     * @param fileLengths The length of each file
+     * @param threads The number of checking threads
+     */
+    public PieceChecker(Piece[] pieces, Storage storage, long[] fileLengths,
+                        int threads) {
+        this.pieces = pieces;
+        this.storage = storage;
+        this.fileLengths = fileLengths;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Create a new checker for the given pieces, using one thread per
+     * available core
+     * @param pieces The pieces to check, with their files and offsets set
+     * @param storage The storage of the files, indexed as in the pieces
+     * @param fileLengths The length of each file
+     */
+    public PieceChecker(Piece[] pieces, Storage storage, long[] fileLengths) {
+        this(pieces, storage, fileLengths,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets the time the checking threads wait before checking a piece when
+     * live disk traffic has been reported during that time
+     * @param pause The time in milliseconds, 0 to never wait
+     */
+    public void setPause(long pause) {
+        this.pause = pause;
+    }
+
+    /**
+     * Reports live disk traffic, i.e. a piece saved or a block uploaded
+     */
+    public void liveIO() {
+        this.lastLiveIO = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts checking the pieces in the background and returns at once
+     */
+    public void start() {
+        this.background = true;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, "PC");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Returns true once all the pieces have been checked
+     * @return boolean
+     */
+    public boolean isDone() {
+        return this.done;
+    }
+
+    /**
+     * Checks all the pieces and returns once they are checked. The listeners
+     * are informed of the result of each piece on the checking threads
+     * @return int The number of complete pieces
+     */
+    public int check() {
+        Thread[] t = new Thread[Math.min(this.threads, this.pieces.length)];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = new Thread(new Runnable() {
+                public void run() {
+                    checkPieces();
+                }
+            }, "PC_" + i);
+            t[i].setDaemon(true);
+            if (this.background)
+                t[i].setPriority(Thread.MIN_PRIORITY);
+            t[i].start();
+        }
+        for (int i = 0; i < t.length; i++) {
+            while (t[i].isAlive()) {
+                try {
+                    t[i].join();
+                } catch (InterruptedException ie) {}
+            }
+        }
+        this.done = true;
+        this.fireCheckCompleted(this.complete.get());
+        return this.complete.get();
+    }
+
+    /**
+     * Returns the number of pieces checked so far
+     * @return int
+     */
+    public int getChecked() {
+        return this.checked.get();
+    }
+
+    /**
+     * Returns the number of pieces found complete so far
+     * @return int
+     */
+    public int getComplete() {
+        return this.complete.get();
+    }
+
+    /**
+     * Takes the next piece to check until there is none left
+     */
+    private void checkPieces() {
+        ByteBuffer b = ByteBuffer.allocate(READ_SIZE);
+        int i;
+        while ((i = this.next.getAndIncrement()) < this.pieces.length) {
+            this.waitIdle();
+            boolean ok = this.checkPiece(this.pieces[i], b);
+            if (ok)
+                this.complete.incrementAndGet();
+            this.checked.incrementAndGet();
+            this.firePieceChecked(this.pieces[i].getIndex(), ok);
+        }
+    }
+
+    /**
+     * Waits for the pause time if live disk traffic has been reported during
+     * that time. The wait is done once per piece, so the check always goes on
+     */
+    private void waitIdle() {
+        long w = this.lastLiveIO + this.pause - System.currentTimeMillis();
+        if (this.pause <= 0 || w <= 0)
+            return;
+        try {
+            Thread.sleep(Math.min(w, this.pause));
+        } catch (InterruptedException ie) {}
+    }
+
+    /**
+     * Hashes the data of the piece found in the files and compares it to the
+     * hash of the piece
+     * @param p Piece
+     * @param b The buffer to read the data in
+     * @return boolean True if the data is correct
+     */
+    private boolean checkPiece(Piece p, ByteBuffer b) {
+        MessageDigest md = Utils.sha1();
+        long remainingData = p.getLength();
+        try {
+            for (Iterator<Map.Entry<Integer, Long>> it =
+                         p.getFileAndOffset().entrySet().iterator();
+                 it.hasNext() && remainingData > 0; ) {
+                Map.Entry<Integer, Long> e = it.next();
+                int file = e.getKey();
+                long position = e.getValue();
+                long len = Math.min(this.fileLengths[file] - position,
+                                    remainingData);
+                if (len == 0)
+                    continue;
+                if (len < 0 || position + len > this.storage.size(file))
+                    return false;
+                this.hash(md, file, position, len, b);
+                remainingData -= len;
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+        return remainingData == 0 && p.isHash(md.digest());
+    }
+
+    /**
+     * Adds a region of a file to the digest, reading it through the buffer
+     * @param md MessageDigest
+     * @param file int
+     * @param position long
+     * @param len long
+     * @param b ByteBuffer
+     * @throws IOException
+     */
+    private void hash(MessageDigest md, int file, long position,
+                      long len, ByteBuffer b) throws IOException {
+        while (len > 0) {
+            b.clear();
+            b.limit((int) Math.min(len, b.capacity()));
+            int n = this.storage.read(file, position, b);
+            if (n < 0)
+                throw new IOException("End of file reached");
+            b.flip();
+            md.update(b);
+            position += n;
+            len -= n;
+        }
+    }
+
+    public void addCheckListener(CheckListener listener) {
+        listeners.add(CheckListener.class, listener);
+    }
+
+    public void removeCheckListener(CheckListener listener) {
+        listeners.remove(CheckListener.class, listener);
+    }
+
+    public CheckListener[] getCheckListeners() {
+        return listeners.getListeners(CheckListener.class);
+    }
+
+    protected void firePieceChecked(int piece, boolean complete) {
+        for (CheckListener listener : getCheckListeners()) {
+            listener.pieceChecked(piece, complete);
+        }
+    }
+
+    protected void fireCheckCompleted(int nbComplete) {
+        for (CheckListener listener : getCheckListeners()) {
+            listener.checkCompleted(nbComplete);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Chooses the pieces to download, rarest first.
+ *
+ * The picker counts, for each piece, the number of connected peers having it.
+ * The pieces still to be downloaded are kept in an array sorted by this count,
+ * with the first position of each count value recorded, so that the array is
+ * made of consecutive buckets of pieces having the same availability. When the
+ * availability of a piece changes by one, the piece is swapped with the first
+ * or last piece of its bucket and the bucket bound moves, which takes constant
+ * time. Picking a piece scans the buckets from the rarest one, starting at a
+ * random position within each bucket to break the ties, and stops at the first
+ * missing piece the peer has. This is quick when the peer has most of the
+ * rarest pieces, but the scan is linear in the number of wanted pieces in the
+ * worst case, e.g. for a peer having few pieces or when most of the rarest
+ * pieces are already requested. Only the availability updates take constant
+ * time.
+ *
+ * This class is not thread-safe, the DownloadManager calls it while holding
+ * its lock
+ */
+public class PiecePicker {
+    private final int[] availability;
+    private final int[] order;
+    private final int[] position;
+    /**
+     * bucketStart[a] is the position in 'order' of the first piece having an
+     * availability of a. bucketStart[maxAvailability + 1] is the number of
+     * pieces still to be downloaded
+     */
+    private int[] bucketStart;
+    private int maxAvailability = 0;
+    private int size;
+    private final Random random = new Random();
+
+    /**
+     * Create a picker for the given number of pieces, none of them being
+     * available yet
+     * @param nbPieces int
+     */
+    public PiecePicker(int nbPieces) {
+        this.availability = new int[nbPieces];
+        this.order = new int[nbPieces];
+        this.position = new int[nbPieces];
+        for (int i = 0; i < nbPieces; i++) {
+            this.order[i] = i;
+            this.position[i] = i;
+        }
+        this.size = nbPieces;
+        this.bucketStart = new int[] {0, nbPieces};
+    }
+
+    private void swap(int i, int j) {
+        int pi = this.order[i];
+        int pj = this.order[j];
+        this.order[i] = pj;
+        this.order[j] = pi;
+        this.position[pj] = i;
+        this.position[pi] = j;
+    }
+
+    /**
+     * Returns true if the given piece is still to be downloaded
+     * @param piece int
+     * @return boolean
+     */
+    public boolean isWanted(int piece) {
+        return this.position[piece] < this.size;
+    }
+
+    /**
+     * Returns the number of connected peers having the given piece
+     * @param piece int
+     * @return int
+     */
+    public int getAvailability(int piece) {
+        return this.availability[piece];
+    }
+
+    /**
+     * Returns the number of pieces still to be downloaded
+     * @return int
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Increases the availability of the given piece, which a peer has just
+     * announced
+     * @param piece int
+     */
+    public void increment(int piece) {
+        int a = this.availability[piece]++;
+        if (!this.isWanted(piece))
+            return;
+        if (a == this.maxAvailability) {
+            this.maxAvailability++;
+            int[] b = new int[this.maxAvailability + 2];
+            System.arraycopy(this.bucketStart, 0, b, 0, this.bucketStart.length);
+            b[this.maxAvailability + 1] = this.size;
+            this.bucketStart = b;
+        }
+        this.swap(this.position[piece], this.bucketStart[a + 1] - 1);
+        this.bucketStart[a + 1]--;
+    }
+
+    /**
+     * Decreases the availability of the given piece, a peer having it being
+     * disconnected
+     * @param piece int
+     */
+    public void decrement(int piece) {
+        int a = this.availability[piece]--;
+        if (!this.isWanted(piece))
+            return;
+        this.swap(this.position[piece], this.bucketStart[a]);
+        this.bucketStart[a]++;
+    }
+
+    /**
+     * Increases the availability of all the pieces set in the bitfield
+     * @param has BitSet
+     */
+    public void addPeer(BitSet has) {
+        for (int i = has.nextSetBit(0); i >= 0 && i < this.availability.length;
+                     i = has.nextSetBit(i + 1))
+            this.increment(i);
+    }
+
+    /**
+     * Decreases the availability of all the pieces set in the bitfield
+     * @param has BitSet
+     */
+    public void removePeer(BitSet has) {
+        for (int i = has.nextSetBit(0); i >= 0 && i < this.availability.length;
+                     i = has.nextSetBit(i + 1))
+            this.decrement(i);
+    }
+
+    /**
+     * Removes the given piece from the pieces to be downloaded, once it is
+     * complete. The piece is moved to the end of each bucket above its own, then
+     * out of the array
+     * @param piece int
+     */
+    public void remove(int piece) {
+        if (!this.isWanted(piece))
+            return;
+        for (int a = this.availability[piece]; a <= this.maxAvailability; a++) {
+            this.swap(this.position[piece], this.bucketStart[a + 1] - 1);
+            this.bucketStart[a + 1]--;
+        }
+        this.size--;
+    }
+
+    /**
+     * Adds back a piece to the pieces to be downloaded, when its data has been
+     * lost. This is the reverse of remove(): the piece is moved into the array,
+     * then to the start of each bucket above its own. Its availability may
+     * have grown above the one of the wanted pieces meanwhile, in which case
+     * empty buckets are added first
+     * @param piece int
+     */
+    public void add(int piece) {
+        if (this.isWanted(piece))
+            return;
+        int av = this.availability[piece];
+        if (av > this.maxAvailability) {
+            int[] b = new int[av + 2];
+            System.arraycopy(this.bucketStart, 0, b, 0, this.bucketStart.length);
+            for (int a = this.maxAvailability + 2; a < b.length; a++)
+                b[a] = this.size;
+            this.bucketStart = b;
+            this.maxAvailability = av;
+        }
+        this.swap(this.position[piece], this.size);
+        this.size++;
+        for (int a = this.maxAvailability; a >= av; a--) {
+            this.bucketStart[a + 1]++;
+            if (a > av)
+                this.swap(this.position[piece], this.bucketStart[a]);
+        }
+    }
+
+    /**
+     * Returns one of the rarest pieces that the peer has and that is still
+     * missing, chosen at random among the pieces having the same availability.
+     * The pieces are checked one by one from the rarest, so this takes time
+     * linear in the number of wanted pieces in the worst case
+     * @param has The pieces the peer has
+     * @param states The piece states. Only MISSING pieces are picked
+     * @return int The piece index, -1 if no piece can be picked
+     */
+    public int pick(BitSet has, PieceStates states) {
+        for (int a = 1; a <= this.maxAvailability; a++) {
+            int start = this.bucketStart[a];
+            int n = this.bucketStart[a + 1] - start;
+            if (n == 0)
+                continue;
+            int r = this.random.nextInt(n);
+            for (int j = 0; j < n; j++) {
+                int piece = this.order[start + (r + j) % n];
+                if (has.get(piece) &&
+                    states.get(piece) == PieceStates.MISSING)
+                    return piece;
+            }
+        }
+        return -1;
+    }
+}
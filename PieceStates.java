@@ -0,0 +1,264 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Download state of every piece of a torrent, readable and updatable by all
+ * the download tasks without locking.
+ *
+ * A piece goes from MISSING to REQUESTED when it is assigned to a task, to
+ * DOWNLOADING when its first block is received, to VERIFYING when all its
+ * blocks have been received and a task checks its hash, and to COMPLETE once
+ * the hash is correct. A corrupted piece goes back to REQUESTED. At startup,
+ * the pieces whose data is being checked in the files are CHECKING, and
+ * become COMPLETE or MISSING once checked.
+ *
+ * The states are stored on 4 bits, 16 pieces per long word, and every change
+ * is a compare-and-set on the word, so a transition only succeeds for the
+ * thread that saw the expected state. The number of pieces in each state is
+ * kept up to date on each transition.
+ */
+public class PieceStates {
+    public static final int MISSING = 0;
+    public static final int REQUESTED = 1;
+    public static final int DOWNLOADING = 2;
+    public static final int VERIFYING = 3;
+    public static final int COMPLETE = 4;
+    public static final int CHECKING = 5;
+
+    private static final int BITS = 4;
+    private static final int PER_WORD = 64 / BITS;
+    private static final long MASK = (1L << BITS) - 1;
+    /**
+     * The bits that are set in a word if any of its pieces is REQUESTED,
+     * DOWNLOADING or VERIFYING (or CHECKING)
+     */
+    private static final long ACTIVE = 0x3333333333333333L;
+
+    private final int nbPieces;
+    private final AtomicLongArray words;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(CHECKING + 1);
+
+    /**
+     * Create a table with all the pieces MISSING
+     * @param nbPieces int
+     */
+    public PieceStates(int nbPieces) {
+        this.nbPieces = nbPieces;
+        this.words = new AtomicLongArray((nbPieces + PER_WORD - 1) / PER_WORD);
+        this.counts.set(MISSING, nbPieces);
+    }
+
+    /**
+     * Returns the state of the given piece
+     * @param piece int
+     * @return int
+     * @throws IndexOutOfBoundsException if the piece does not exist
+     */
+    public int get(int piece) {
+        this.checkIndex(piece);
+        long w = this.words.get(piece / PER_WORD);
+        return (int) ((w >>> ((piece % PER_WORD) * BITS)) & MASK);
+    }
+
+    /**
+     * Changes the state of the piece if its current state is the expected one
+     * @param piece int
+     * @param expect The expected state
+     * @param update The new state
+     * @return boolean True if the state has been changed
+     * @throws IndexOutOfBoundsException if the piece does not exist
+     */
+    public boolean compareAndSet(int piece, int expect, int update) {
+        this.checkIndex(piece);
+        int i = piece / PER_WORD;
+        int shift = (piece % PER_WORD) * BITS;
+        while (true) {
+            long w = this.words.get(i);
+            if (((w >>> shift) & MASK) != expect)
+                return false;
+            long n = (w & ~(MASK << shift)) | ((long) update << shift);
+            if (this.words.compareAndSet(i, w, n)) {
+                if (expect != update) {
+                    this.counts.decrementAndGet(expect);
+                    this.counts.incrementAndGet(update);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sets the state of the piece, whatever its current state
+     * @param piece int
+     * @param update The new state
+     * @return int The previous state
+     */
+    public int set(int piece, int update) {
+        while (true) {
+            int s = this.get(piece);
+            if (this.compareAndSet(piece, s, update))
+                return s;
+        }
+    }
+
+    /**
+     * Returns true if the piece is complete and verified
+     * @param piece int
+     * @return boolean
+     */
+    public boolean isComplete(int piece) {
+        return this.get(piece) == COMPLETE;
+    }
+
+    /**
+     * Returns true if the piece is assigned to a task and not complete, i.e.
+     * REQUESTED, DOWNLOADING or VERIFYING
+     * @param piece int
+     * @return boolean
+     */
+    public boolean isActive(int piece) {
+        int s = this.get(piece);
+        return s >= REQUESTED && s <= VERIFYING;
+    }
+
+    /**
+     * Returns true if the blocks of the piece are being downloaded, i.e. the
+     * piece is REQUESTED or DOWNLOADING. The blocks of a piece that is
+     * VERIFYING or COMPLETE are not wanted anymore
+     * @param piece int
+     * @return boolean
+     */
+    public boolean isDownloading(int piece) {
+        int s = this.get(piece);
+        return s == REQUESTED || s == DOWNLOADING;
+    }
+
+    /**
+     * Returns the number of pieces of the torrent
+     * @return int
+     */
+    public int getNbPieces() {
+        return this.nbPieces;
+    }
+
+    /**
+     * Returns the number of pieces in the given state
+     * @param state int
+     * @return int
+     */
+    public int count(int state) {
+        return this.counts.get(state);
+    }
+
+    /**
+     * Returns the number of complete pieces
+     * @return int
+     */
+    public int completed() {
+        return this.counts.get(COMPLETE);
+    }
+
+    /**
+     * Returns true if all the pieces are complete
+     * @return boolean
+     */
+    public boolean allComplete() {
+        return this.counts.get(COMPLETE) == this.nbPieces;
+    }
+
+    /**
+     * Returns the index of the first active piece starting at the given one.
+     * Words without any active piece are skipped at once
+     * @param from int
+     * @return int The piece index, -1 if there is none
+     */
+    public int nextActive(int from) {
+        for (int i = from / PER_WORD; i < this.words.length(); i++) {
+            long w = this.words.get(i);
+            if ((w & ACTIVE) == 0)
+                continue;
+            for (int p = Math.max(from, i * PER_WORD);
+                         p < Math.min((i + 1) * PER_WORD, this.nbPieces); p++)
+                if (this.isActive(p))
+                    return p;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the pieces in the given state as a BitSet
+     * @param state int
+     * @return BitSet
+     */
+    public BitSet toBitSet(int state) {
+        BitSet b = new BitSet(this.nbPieces);
+        for (int i = 0; i < this.nbPieces; i++)
+            if (this.get(i) == state)
+                b.set(i);
+        return b;
+    }
+
+    /**
+     * Returns the bitfield of the complete pieces, as sent in a BITFIELD message
+     * @return byte[]
+     */
+    public byte[] getBitField() {
+        byte[] bitfield = new byte[(this.nbPieces + 7) / 8];
+        for (int i = 0; i < this.nbPieces; i++)
+            if (this.get(i) == COMPLETE)
+                bitfield[i / 8] |= 1 << (7 - i % 8);
+        return bitfield;
+    }
+
+    /**
+     * Fails if the given index is not the one of a piece of the torrent. The
+     * word of a piece beyond the last one may exist, and a negative index
+     * would read a shifted state
+     * @param piece int
+     */
+    private void checkIndex(int piece) {
+        if (piece < 0 || piece >= this.nbPieces)
+            throw new IndexOutOfBoundsException("Piece " + piece);
+    }
+}
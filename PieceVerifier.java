@@ -0,0 +1,192 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the hash of the downloaded pieces on a pool of worker threads, so
+ * that the tasks keep receiving and requesting blocks while their pieces are
+ * hashed and saved. The pool has one thread per available core and is shared
+ * by all the downloads.
+ *
+ * The queue of pieces waiting for verification is bounded. When it is full,
+ * the task submitting a piece verifies it itself, which slows down the
+ * connections that download faster than the pieces can be hashed. Once the
+ * verifier is shut down, the pieces are verified by the submitting task too,
+ * so that no piece is left unverified.
+ */
+public class PieceVerifier {
+
+    private static PieceVerifier instance = null;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hashTime = new AtomicLong();
+
+    /**
+     * Create a new verifier
+     * @param threads The number of verification threads
+     * @param queue The maximal number of pieces waiting for verification
+     */
+    public PieceVerifier(int threads, int queue) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PV_" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                r.run();
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the verifier shared by all the downloads, created on first use
+     * with one thread per available core
+     * @return PieceVerifier
+     */
+    public static synchronized PieceVerifier getDefault() {
+        if (instance == null) {
+            int n = Runtime.getRuntime().availableProcessors();
+            instance = new PieceVerifier(n, Constants.VERIFY_QUEUE);
+        }
+        return instance;
+    }
+
+    /**
+     * Verifies the piece asynchronously and gives the result to the listener,
+     * on the verification thread
+     * @param p The piece, whose blocks have all been received
+     * @param listener VerifyListener
+     */
+    public void verify(final Piece p, final VerifyListener listener) {
+        this.executor.execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                boolean ok = p.verify();
+                hashTime.addAndGet(System.nanoTime() - start);
+                bytes.addAndGet(p.getLength());
+                verified.incrementAndGet();
+                if (!ok)
+                    failed.incrementAndGet();
+                listener.pieceVerified(p, ok);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of pieces waiting for verification
+     * @return int
+     */
+    public int getQueueSize() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of pieces being verified
+     * @return int
+     */
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of pieces verified so far
+     * @return long
+     */
+    public long getVerified() {
+        return this.verified.get();
+    }
+
+    /**
+     * Returns the number of pieces found corrupted so far
+     * @return long
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Returns the number of bytes verified so far
+     * @return long
+     */
+    public long getBytesVerified() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Returns the hashing throughput of a verification thread, in bytes per
+     * second spent verifying
+     * @return float
+     */
+    public float getHashRate() {
+        long t = this.hashTime.get();
+        if (t == 0)
+            return 0.00f;
+        return (float) (this.bytes.get() * 1000000000.0 / t);
+    }
+
+    /**
+     * Stops the verification threads once the queued pieces are verified. If
+     * this is the shared verifier, the next call to getDefault() creates a
+     * new one, so the other downloads keep verifying on a pool
+     */
+    public void shutdown() {
+        synchronized (PieceVerifier.class) {
+            if (instance == this)
+                instance = null;
+        }
+        this.executor.shutdown();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage writing the files with RandomAccessFile seek, read and write. The
+ * accesses to a file are serialized, since they share its file pointer.
+ * Blocks are still uploaded with FileChannel.transferTo, which does not use
+ * the file pointer.
+ */
+public class RandomAccessFileStorage implements Storage {
+    private RandomAccessFile[] files = new RandomAccessFile[0];
+
+    public void open(File[] files, long[] lengths) throws IOException {
+        this.files = new RandomAccessFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+            this.files[i] = new RandomAccessFile(files[i], "rw");
+            this.allocate(i, lengths[i]);
+        }
+    }
+
+    public int getNbFiles() {
+        return this.files.length;
+    }
+
+    public long size(int file) throws IOException {
+        return this.files[file].length();
+    }
+
+    public void allocate(int file, long length) throws IOException {
+        RandomAccessFile raf = this.files[file];
+        synchronized (raf) {
+            if (raf.length() != length)
+                raf.setLength(length);
+        }
+    }
+
+    public int read(int file, long position, ByteBuffer dst) throws IOException {
+        RandomAccessFile raf = this.files[file];
+        int n;
+        synchronized (raf) {
+            raf.seek(position);
+            if (dst.hasArray()) {
+                n = raf.read(dst.array(), dst.arrayOffset() + dst.position(),
+                             dst.remaining());
+                if (n > 0)
+                    dst.position(dst.position() + n);
+                return n;
+            }
+            byte[] b = new byte[dst.remaining()];
+            n = raf.read(b);
+            if (n > 0)
+                dst.put(b, 0, n);
+        }
+        return n;
+    }
+
+    public int write(int file, long position, ByteBuffer src) throws IOException {
+        RandomAccessFile raf = this.files[file];
+        int n = src.remaining();
+        synchronized (raf) {
+            raf.seek(position);
+            if (src.hasArray()) {
+                raf.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.position() + n);
+            } else {
+                byte[] b = new byte[n];
+                src.get(b);
+                raf.write(b);
+            }
+        }
+        return n;
+    }
+
+    public long transferTo(int file, long position, long count,
+                           WritableByteChannel target) throws IOException {
+        return this.files[file].getChannel().transferTo(position, count, target);
+    }
+
+    public ByteBuffer map(int file, long position, int length) {
+        return null;
+    }
+
+    public void flush() throws IOException {
+        for (int i = 0; i < this.files.length; i++)
+            this.files[i].getFD().sync();
+    }
+
+    public void flush(int file) throws IOException {
+        this.files[file].getFD().sync();
+    }
+
+    public void close() throws IOException {
+        IOException e = null;
+        for (int i = 0; i < this.files.length; i++) {
+            try {
+                this.files[i].close();
+            } catch (IOException ioe) {
+                e = ioe;
+            }
+        }
+        if (e != null)
+            throw e;
+    }
+
+    public boolean isPersistent() {
+        return true;
+    }
+}
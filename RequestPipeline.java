@@ -0,0 +1,165 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+/**
+ * Computes how many block requests should be kept outstanding to a remote peer.
+ *
+ * The depth is the bandwidth-delay product of the connection, in blocks: the
+ * download rate from the peer multiplied by the block round-trip time. The
+ * minimal RTT observed recently is used, rather than the smoothed one, so that
+ * the requests queued at the remote peer do not inflate the estimate. The
+ * product is multiplied by a gain factor so that the pipeline keeps growing
+ * while it is the limiting factor, and settles once the link is.
+ */
+public class RequestPipeline {
+    private static final float GAIN = 2.0f;
+    private static final long RATE_WINDOW = 500;
+    private static final long MIN_RTT_WINDOW = 10000;
+
+    private int minDepth;
+    private int maxDepth;
+    private int depth;
+
+    private float srtt = 0;
+    private long minRtt = -1;
+    private long minRttTime = 0;
+
+    private float rate = 0;
+    private long windowBytes = 0;
+    private long windowStart = 0;
+
+    /**
+     * Create a pipeline with the depth range defined in Constants
+     */
+    public RequestPipeline() {
+        this(Constants.MIN_REQUEST_DEPTH, Constants.MAX_REQUEST_DEPTH);
+    }
+
+    /**
+     * Create a pipeline with the given depth range
+     * @param minDepth The minimal number of outstanding requests
+     * @param maxDepth The maximal number of outstanding requests
+     */
+    public RequestPipeline(int minDepth, int maxDepth) {
+        this.setDepthRange(minDepth, maxDepth);
+        this.depth = Math.max(this.minDepth, Math.min(5, this.maxDepth));
+    }
+
+    /**
+     * Sets the range within which the depth is computed
+     * @param minDepth int
+     * @param maxDepth int
+     */
+    public synchronized void setDepthRange(int minDepth, int maxDepth) {
+        this.minDepth = Math.max(1, minDepth);
+        this.maxDepth = Math.max(this.minDepth, maxDepth);
+        this.depth = Math.max(this.minDepth, Math.min(this.depth, this.maxDepth));
+    }
+
+    /**
+     * Updates the estimates with a block that has just been received
+     * @param rtt The time between the request and the reception of the block
+     * @param length The length of the block
+     */
+    public synchronized void blockReceived(long rtt, int length) {
+        long now = System.currentTimeMillis();
+        if (rtt < 1)
+            rtt = 1;
+        this.srtt = (this.srtt == 0) ? rtt : 0.875f * this.srtt + 0.125f * rtt;
+        if (this.minRtt < 0 || rtt <= this.minRtt ||
+            now - this.minRttTime > MIN_RTT_WINDOW) {
+            this.minRtt = rtt;
+            this.minRttTime = now;
+        }
+
+        if (this.windowStart == 0)
+            this.windowStart = now - rtt;
+        this.windowBytes += length;
+        long elapsed = now - this.windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            float sample = 1000.0f * this.windowBytes / elapsed;
+            this.rate = (this.rate == 0) ? sample : 0.7f * this.rate + 0.3f * sample;
+            this.windowBytes = 0;
+            this.windowStart = now;
+
+            int d = (int) Math.ceil(GAIN * this.rate * this.minRtt / 1000.0f /
+                                    PeerProtocol.BLOCK_SIZE);
+            this.depth = Math.max(this.minDepth, Math.min(d, this.maxDepth));
+        }
+    }
+
+    /**
+     * Returns the number of requests that should be kept outstanding
+     * @return int
+     */
+    public synchronized int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Returns the smoothed block round-trip time in milliseconds
+     * @return float
+     */
+    public synchronized float getRTT() {
+        return this.srtt;
+    }
+
+    /**
+     * Returns the minimal block round-trip time observed recently, in
+     * milliseconds. -1 if no block has been received yet
+     * @return long
+     */
+    public synchronized long getMinRTT() {
+        return this.minRtt;
+    }
+
+    /**
+     * Returns the download rate measured on this pipeline, in bytes per second
+     * @return float
+     */
+    public synchronized float getRate() {
+        return this.rate;
+    }
+
+    public synchronized String toString() {
+        return "depth=" + this.depth + " rtt=" + this.srtt + "ms minRtt=" +
+                this.minRtt + "ms rate=" + this.rate + "B/s";
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Append-only journal of the pieces completed for a torrent, used to restart
+ * a download without hashing all its pieces again.
+ *
+ * The journal starts with a snapshot holding the bitfield of the complete
+ * pieces and the size and modification time of each file. Each piece saved
+ * afterwards appends a record with its index and the new size and time of
+ * the files it has been written to. When too many records have been
+ * appended, and when the journal is closed, it is compacted into a single
+ * snapshot, written to a temporary file and renamed over the journal.
+ *
+ * At startup, the pieces lying only in files whose size and time still match
+ * the journal can be trusted. The other pieces have to be hashed again. A
+ * record cut short by a crash is ignored, along with anything after it.
+ */
+public class ResumeJournal {
+    private static final int MAGIC = 0x6a425452;
+    private static final int SNAPSHOT = 'S';
+    private static final int PIECE = 'P';
+
+    private final File journal;
+    private final byte[] infoHash;
+    private final int nbPieces;
+    private final File[] files;
+    private final int compactAfter;
+
+    private BitSet complete;
+    private long[] sizes;
+    private long[] times;
+    private boolean loaded = false;
+    private DataOutputStream out = null;
+    private int records = 0;
+
+    /**
+     * Create a journal for the given torrent. Nothing is read or written
+     * until load or snapshot is called
+     * @param journal The journal file
+     * @param infoHash The info hash of the torrent
+     * @param nbPieces The number of pieces of the torrent
+     * @param files The files of the torrent, in the torrent order
+     * @param compactAfter The number of piece records after which the
+     *                     journal is compacted
+     */
+    public ResumeJournal(File journal, byte[] infoHash, int nbPieces,
+                         File[] files, int compactAfter) {
+        this.journal = journal;
+        this.infoHash = infoHash;
+        this.nbPieces = nbPieces;
+        this.files = files;
+        this.compactAfter = compactAfter;
+        this.complete = new BitSet(nbPieces);
+        this.sizes = new long[files.length];
+        this.times = new long[files.length];
+    }
+
+    /**
+     * Reads the journal, if it exists and belongs to this torrent
+     * @return boolean True if the journal could be used
+     */
+    public synchronized boolean load() {
+        this.loaded = false;
+        if (!this.journal.isFile())
+            return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(this.journal)));
+            if (in.readByte() != SNAPSHOT || in.readInt() != MAGIC)
+                return false;
+            byte[] hash = new byte[this.infoHash.length];
+            in.readFully(hash);
+            if (!Arrays.equals(hash, this.infoHash) ||
+                in.readInt() != this.nbPieces)
+                return false;
+            byte[] bitfield = new byte[(this.nbPieces + 7) / 8];
+            in.readFully(bitfield);
+            if (in.readInt() != this.files.length)
+                return false;
+            BitSet b = new BitSet(this.nbPieces);
+            for (int i = 0; i < this.nbPieces; i++)
+                if ((bitfield[i / 8] & (1 << (7 - i % 8))) != 0)
+                    b.set(i);
+            long[] s = new long[this.files.length];
+            long[] t = new long[this.files.length];
+            for (int i = 0; i < this.files.length; i++) {
+                s[i] = in.readLong();
+                t[i] = in.readLong();
+            }
+            this.complete = b;
+            this.sizes = s;
+            this.times = t;
+            this.loaded = true;
+            this.readRecords(in);
+        } catch (IOException ioe) {
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ioe) {}
+        }
+        return this.loaded;
+    }
+
+    /**
+     * Applies the piece records following the snapshot, until the end of the
+     * journal or the first incomplete or invalid record
+     * @param in DataInputStream
+     */
+    private void readRecords(DataInputStream in) {
+        try {
+            while (true) {
+                if (in.readByte() != PIECE)
+                    return;
+                int piece = in.readInt();
+                int n = in.readShort();
+                int[] f = new int[n];
+                long[] s = new long[n];
+                long[] t = new long[n];
+                for (int i = 0; i < n; i++) {
+                    f[i] = in.readInt();
+                    s[i] = in.readLong();
+                    t[i] = in.readLong();
+                    if (f[i] < 0 || f[i] >= this.files.length)
+                        return;
+                }
+                if (piece < 0 || piece >= this.nbPieces)
+                    return;
+                this.complete.set(piece);
+                for (int i = 0; i < n; i++) {
+                    this.sizes[f[i]] = s[i];
+                    this.times[f[i]] = t[i];
+                }
+                this.records++;
+            }
+        } catch (IOException ioe) {}
+    }
+
+    /**
+     * Returns the pieces recorded as complete
+     * @return BitSet
+     */
+    public synchronized BitSet getComplete() {
+        return (BitSet) this.complete.clone();
+    }
+
+    /**
+     * Returns true if the journal has been loaded and the given file has the
+     * size and modification time recorded in it, i.e. has not been changed
+     * since
+     * @param file The file index
+     * @return boolean
+     */
+    public synchronized boolean isFileUnchanged(int file) {
+        return this.loaded && this.files[file].length() == this.sizes[file] &&
+                this.files[file].lastModified() == this.times[file];
+    }
+
+    /**
+     * Records a piece that has been saved into the given files. The journal
+     * is compacted once enough records have been appended. Nothing is written
+     * before the first snapshot, i.e. while the pieces are being checked at
+     * startup: the files written meanwhile will be checked again at restart
+     * @param piece The piece index
+     * @param fileIndexes The files the piece has been written to
+     */
+    public synchronized void pieceCompleted(int piece,
+                                            Collection<Integer> fileIndexes) {
+        this.complete.set(piece);
+        if (this.out == null)
+            return;
+        try {
+            this.out.writeByte(PIECE);
+            this.out.writeInt(piece);
+            this.out.writeShort(fileIndexes.size());
+            for (int f : fileIndexes) {
+                this.sizes[f] = this.files[f].length();
+                this.times[f] = this.files[f].lastModified();
+                this.out.writeInt(f);
+                this.out.writeLong(this.sizes[f]);
+                this.out.writeLong(this.times[f]);
+            }
+            this.out.flush();
+            if (++this.records >= this.compactAfter)
+                this.snapshot(this.complete);
+        } catch (IOException ioe) {
+            System.err.println("Could not write resume journal: " +
+                               ioe.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the given complete pieces and
+     * of the current size and modification time of the files
+     * @param complete The complete pieces
+     * @throws IOException
+     */
+    public synchronized void snapshot(BitSet complete) throws IOException {
+        this.closeStream();
+        this.complete = (BitSet) complete.clone();
+        for (int i = 0; i < this.files.length; i++) {
+            this.sizes[i] = this.files[i].length();
+            this.times[i] = this.files[i].lastModified();
+        }
+        File dir = this.journal.getAbsoluteFile().getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        File tmp = new File(this.journal.getPath() + ".tmp");
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            o.writeByte(SNAPSHOT);
+            o.writeInt(MAGIC);
+            o.write(this.infoHash);
+            o.writeInt(this.nbPieces);
+            byte[] bitfield = new byte[(this.nbPieces + 7) / 8];
+            for (int i = this.complete.nextSetBit(0); i >= 0 && i < this.nbPieces;
+                         i = this.complete.nextSetBit(i + 1))
+                bitfield[i / 8] |= 1 << (7 - i % 8);
+            o.write(bitfield);
+            o.writeInt(this.files.length);
+            for (int i = 0; i < this.files.length; i++) {
+                o.writeLong(this.sizes[i]);
+                o.writeLong(this.times[i]);
+            }
+        } finally {
+            o.close();
+        }
+        if (!tmp.renameTo(this.journal)) {
+            this.journal.delete();
+            if (!tmp.renameTo(this.journal))
+                throw new IOException("Could not replace " + this.journal);
+        }
+        this.loaded = true;
+        this.records = 0;
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(this.journal, true)));
+    }
+
+    /**
+     * Compacts the journal and closes it. If no snapshot has been written
+     * since the journal was loaded, it is left as it is
+     */
+    public synchronized void close() {
+        if (this.out == null)
+            return;
+        try {
+            this.snapshot(this.complete);
+        } catch (IOException ioe) {
+            System.err.println("Could not write resume journal: " +
+                               ioe.getMessage());
+        }
+        this.closeStream();
+    }
+
+    private void closeStream() {
+        if (this.out == null)
+            return;
+        try {
+            this.out.close();
+        } catch (IOException ioe) {}
+        this.out = null;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+/**
+ * Counters describing how the messages queued for a remote peer have been
+ * written to the socket: number of messages, number of batches (i.e. wakeups
+ * of the sender that found at least one message) and number of write calls.
+ * Updated by the single thread writing to the connection, read by anyone.
+ */
+public class SendStatistics {
+    private volatile long messages = 0;
+    private volatile long batches = 0;
+    private volatile long writeCalls = 0;
+    private volatile long bytes = 0;
+    private volatile int lastBatchSize = 0;
+    private volatile int maxBatchSize = 0;
+
+    /**
+     * Records a batch of messages written to the socket
+     * @param nbMessages The number of messages in the batch
+     * @param nbWriteCalls The number of write calls needed to write the batch
+     * @param nbBytes The number of bytes written
+     */
+    void batchWritten(int nbMessages, int nbWriteCalls, long nbBytes) {
+        this.messages += nbMessages;
+        this.batches++;
+        this.writeCalls += nbWriteCalls;
+        this.bytes += nbBytes;
+        this.lastBatchSize = nbMessages;
+        if (nbMessages > this.maxBatchSize)
+            this.maxBatchSize = nbMessages;
+    }
+
+    /**
+     * Records write calls that did not complete a batch
+     * @param nbWriteCalls int
+     * @param nbBytes long
+     */
+    void written(int nbWriteCalls, long nbBytes) {
+        this.writeCalls += nbWriteCalls;
+        this.bytes += nbBytes;
+    }
+
+    /**
+     * Returns the number of messages sent so far
+     * @return long
+     */
+    public long getMessages() {
+        return this.messages;
+    }
+
+    /**
+     * Returns the number of batches written so far
+     * @return long
+     */
+    public long getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * Returns the number of write calls made on the socket so far
+     * @return long
+     */
+    public long getWriteCalls() {
+        return this.writeCalls;
+    }
+
+    /**
+     * Returns the number of bytes written to the socket so far
+     * @return long
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Returns the number of messages in the last batch
+     * @return int
+     */
+    public int getLastBatchSize() {
+        return this.lastBatchSize;
+    }
+
+    /**
+     * Returns the number of messages in the largest batch
+     * @return int
+     */
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Returns the average number of messages per batch
+     * @return float
+     */
+    public float getAverageBatchSize() {
+        long b = this.batches;
+        return b == 0 ? 0.0f : (float) this.messages / (float) b;
+    }
+
+    public String toString() {
+        return this.messages + " messages in " + this.batches + " batches (avg " +
+                this.getAverageBatchSize() + ", max " + this.maxBatchSize +
+                "), " + this.writeCalls + " write calls, " + this.bytes + " bytes";
+    }
+}
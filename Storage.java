@@ -0,0 +1,158 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage of the files of a torrent. The DownloadManager only accesses the
+ * data through this interface, with positional reads and writes given a file
+ * index, so that the way the data is stored can be chosen for each torrent:
+ * RandomAccessFileStorage, FileChannelStorage, MappedStorage or, for tests
+ * and benchmarks, MemoryStorage.
+ *
+ * Implementations must accept concurrent reads and writes of different parts
+ * of the files.
+ */
+public interface Storage {
+    /**
+     * Opens the given files, creating them if needed, and allocates them
+     * to the given lengths
+     * @param files The files of the torrent, in the torrent order
+     * @param lengths The length of each file
+     * @throws IOException
+     */
+    public void open(File[] files, long[] lengths) throws IOException;
+
+    /**
+     * Returns the number of files
+     * @return int
+     */
+    public int getNbFiles();
+
+    /**
+     * Returns the current length of a file
+     * @param file The file index
+     * @return long
+     * @throws IOException
+     */
+    public long size(int file) throws IOException;
+
+    /**
+     * Sets the length of a file, if it differs from the current one
+     * @param file The file index
+     * @param length long
+     * @throws IOException
+     */
+    public void allocate(int file, long length) throws IOException;
+
+    /**
+     * Reads bytes from a file into the buffer, starting at the given position
+     * @param file The file index
+     * @param position The position in the file
+     * @param dst The buffer, filled from its position up to its limit
+     * @return int The number of bytes read, -1 at the end of the file
+     * @throws IOException
+     */
+    public int read(int file, long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the buffer into a file, starting at the
+     * given position
+     * @param file The file index
+     * @param position The position in the file
+     * @param src The buffer
+     * @return int The number of bytes written
+     * @throws IOException
+     */
+    public int write(int file, long position, ByteBuffer src) throws IOException;
+
+    /**
+     * Transfers bytes of a file to a channel, e.g. a socket, copying them as
+     * little as the storage allows
+     * @param file The file index
+     * @param position The position in the file
+     * @param count The maximal number of bytes to transfer
+     * @param target The channel
+     * @return long The number of bytes transferred
+     * @throws IOException
+     */
+    public long transferTo(int file, long position, long count,
+                           WritableByteChannel target) throws IOException;
+
+    /**
+     * Returns a read-only view of a part of a file if the storage can give
+     * one without copying the data, null otherwise
+     * @param file The file index
+     * @param position The position in the file
+     * @param length The length of the view
+     * @return ByteBuffer
+     * @throws IOException
+     */
+    public ByteBuffer map(int file, long position, int length) throws IOException;
+
+    /**
+     * Forces the written data to the storage device
+     * @throws IOException
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Forces the data written in a file to the storage device
+     * @param file The file index
+     * @throws IOException
+     */
+    public void flush(int file) throws IOException;
+
+    /**
+     * Closes the files
+     * @throws IOException
+     */
+    public void close() throws IOException;
+
+    /**
+     * Returns true if the data remains after the storage is closed, i.e. the
+     * files can be found again at the next start
+     * @return boolean
+     */
+    public boolean isPersistent();
+}
@@ -0,0 +1,136 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates and starts the threads running the peer tasks (DownloadTask,
+ * MessageSender, MessageReceiver), the PeerUpdater and the ConnectionListener.
+ * By default, these run on platform threads. A different ThreadFactory can be
+ * plugged in, e.g. one creating virtual threads on a JDK that supports them.
+ *
+ * The internal pools (DiskIO, PieceVerifier, WriteBackCache, PieceChecker and
+ * the allocator of AllocatingStorage) do not use this class. They block in
+ * monitors, which would pin the carriers of virtual threads, and some of them
+ * run with a lower priority, so they always run on daemon platform threads.
+ */
+public class TaskRunner {
+
+    private static ThreadFactory factory = null;
+
+    /**
+     * Sets the factory used to create all future task threads
+     * @param f The factory to use, or null to use platform threads
+     */
+    public static synchronized void setThreadFactory(ThreadFactory f) {
+        factory = f;
+    }
+
+    /**
+     * Returns the factory used to create task threads, null if platform threads
+     * are created directly
+     * @return ThreadFactory
+     */
+    public static synchronized ThreadFactory getThreadFactory() {
+        return factory;
+    }
+
+    /**
+     * Returns a factory creating virtual threads, or null if the running JDK
+     * does not support them (virtual threads require JDK 21)
+     * @return ThreadFactory
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").
+                    getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run all future task threads on virtual threads, if the running JDK
+     * supports them
+     * @return true if virtual threads are now used, false otherwise
+     */
+    public static boolean useVirtualThreads() {
+        ThreadFactory f = virtualThreadFactory();
+        if (f == null)
+            return false;
+        setThreadFactory(f);
+        return true;
+    }
+
+    /**
+     * Creates a thread running the given task, without starting it
+     * @param r The task to run
+     * @param name The name of the thread
+     * @param daemon True if the thread should not prevent the JVM from exiting.
+     * Ignored by factories that only create daemon threads (i.e. virtual threads)
+     * @return Thread The new thread
+     */
+    public static Thread newThread(Runnable r, String name, boolean daemon) {
+        ThreadFactory f = getThreadFactory();
+        Thread t = (f == null) ? new Thread(r) : f.newThread(r);
+        t.setName(name);
+        if (t.isDaemon() != daemon) {
+            try {
+                t.setDaemon(daemon);
+            } catch (IllegalArgumentException iae) {}
+        }
+        return t;
+    }
+
+    /**
+     * Creates and starts a thread running the given task
+     * @param r The task to run
+     * @param name The name of the thread
+     * @param daemon True if the thread should not prevent the JVM from exiting.
+     * Ignored by factories that only create daemon threads (i.e. virtual threads)
+     * @return Thread The started thread
+     */
+    public static Thread start(Runnable r, String name, boolean daemon) {
+        Thread t = newThread(r, name, daemon);
+        t.start();
+        return t;
+    }
+}
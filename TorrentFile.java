@@ -67,7 +67,7 @@ public class TorrentFile {
     public String info_hash_as_url;
     public long total_length;
 
-    public ArrayList piece_hash_values_as_binary;
+    public ArrayList<byte[]> piece_hash_values_as_binary;
     public ArrayList piece_hash_values_as_hex;
     public ArrayList piece_hash_values_as_url;
 
@@ -88,7 +88,7 @@ public class TorrentFile {
         name = new ArrayList();
         length = new ArrayList();
 
-        piece_hash_values_as_binary = new ArrayList();
+        piece_hash_values_as_binary = new ArrayList<byte[]>();
         piece_hash_values_as_url = new ArrayList();
         piece_hash_values_as_hex = new ArrayList();
         info_hash_as_binary = new byte[20];
@@ -146,10 +146,10 @@ public class TorrentProcessor {
                 List multFiles = (List) info.get("files");
                 this.torrent.total_length = 0;
                 for (int i = 0; i < multFiles.size(); i++) {
-                    this.torrent.length.add(((Long) ((Map) multFiles.get(i)).
-                                             get("length")).intValue());
+                    this.torrent.length.add((Long) ((Map) multFiles.get(i)).
+                                            get("length"));
                     this.torrent.total_length += ((Long) ((Map) multFiles.get(i)).
-                                                  get("length")).intValue();
+                                                  get("length")).longValue();
 
                     List path = (List) ((Map) multFiles.get(i)).get(
                             "path");
@@ -160,8 +160,8 @@ public class TorrentProcessor {
                     this.torrent.name.add(filePath);
                 }
             } else {
-                this.torrent.length.add(((Long) info.get("length")).intValue());
-                this.torrent.total_length = ((Long) info.get("length")).intValue();
+                this.torrent.length.add((Long) info.get("length"));
+                this.torrent.total_length = ((Long) info.get("length")).longValue();
                 this.torrent.name.add(new String((byte[]) info.get("name")));
             }
         }else
@@ -339,7 +339,7 @@ public class TorrentProcessor {
 
                             this.torrent.total_length += recursiveListFile.length();
                             this.torrent.name.add(pth);
-                            this.torrent.length.add(new Long(recursiveListFile.length()).intValue());
+                            this.torrent.length.add(Long.valueOf(recursiveListFile.length()));
                             nbFileAdded++;
                         }
                     }
@@ -347,7 +347,7 @@ public class TorrentProcessor {
                     {
                         this.torrent.total_length += f.length();
                         this.torrent.name.add(f.getPath());
-                        this.torrent.length.add(new Long(f.length()).intValue());
+                        this.torrent.length.add(Long.valueOf(f.length()));
                         nbFileAdded++;
                     }
                 }
@@ -368,7 +368,7 @@ public class TorrentProcessor {
         long total = 0;
         torr.piece_hash_values_as_binary.clear();
         for (int i = 0; i < torr.name.size(); i++) {
-            total += (Integer) torr.length.get(i);
+            total += ((Long) torr.length.get(i)).longValue();
             File f = new File((String) torr.name.get(i));
             if (f.exists()) {
                 try {
@@ -414,7 +414,7 @@ public class TorrentProcessor {
         SortedMap info = new TreeMap();
         
         if (torr.name.size() == 1) {
-            info.put("length", (Integer) torr.length.get(0));
+            info.put("length", (Long) torr.length.get(0));
             info.put("name", new File((String) torr.name.get(0)).getName());
         } else {
             if (!torr.saveAs.matches(""))
@@ -435,7 +435,7 @@ public class TorrentProcessor {
                 pth = (String) torr.name.get(i);
                 long fileLength = new File(pth).length();
 
-                torr.length.set(i, (int) fileLength);
+                torr.length.set(i, Long.valueOf(fileLength));
                 file.put("length", torr.length.get(i));
 
                 String[] pthSplit = pth.split("/");
@@ -454,12 +454,13 @@ public class TorrentProcessor {
             info.put("files", files);
         }
         info.put("piece length", torr.pieceLength);
-        byte[] pieces = new byte[0];
-        for (int i = 0; i < torr.piece_hash_values_as_binary.size(); i++)
-            pieces = Utils.concat(pieces,
-                                  (byte[]) torr.piece_hash_values_as_binary.
-                                  get(i));
-        info.put("pieces", pieces);
+        ByteArrayOutputStream pieces = new ByteArrayOutputStream(
+                20 * torr.piece_hash_values_as_binary.size());
+        for (int i = 0; i < torr.piece_hash_values_as_binary.size(); i++) {
+            byte[] hash = torr.piece_hash_values_as_binary.get(i);
+            pieces.write(hash, 0, hash.length);
+        }
+        info.put("pieces", pieces.toByteArray());
         map.put("info", info);
         
         try {
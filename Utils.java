@@ -216,19 +216,49 @@ public class Utils {
                 (byte) i};
     }
 
+    /**
+     * SHA-1 digest of each thread, reused for every hash computed by the thread
+     */
+    private static final ThreadLocal<MessageDigest> SHA1 =
+            new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            return Utils.newSHA1();
+        }
+    };
+
+    /**
+     * Returns a new SHA-1 digest
+     * @return MessageDigest
+     */
+    public static MessageDigest newSHA1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            System.err.println("SHA-1 algorithm is not available...");
+            System.exit(2);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the SHA-1 digest of the current thread, reset
+     * @return MessageDigest
+     */
+    public static MessageDigest sha1() {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        return md;
+    }
+
     /**
      * Compute the SHA-1 hash of the bytes in the given buffer
      * @param hashThis ByteBuffer
      * @return byte[]
      */
     public static byte[] hash(ByteBuffer hashThis){
-        try{
-            byte[] hash = new byte[20];
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(hashThis);
-            return md.digest();
-        }catch(NoSuchAlgorithmException nsae){}
-        return null;
+        MessageDigest md = Utils.sha1();
+        md.update(hashThis);
+        return md.digest();
     }
 
     /**
@@ -237,17 +267,7 @@ public class Utils {
      * @return byte[]
      */
     public static byte[] hash(byte[] hashThis) {
-        try {
-            byte[] hash = new byte[20];
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-
-            hash = md.digest(hashThis);
-            return hash;
-        } catch (NoSuchAlgorithmException nsae) {
-            System.err.println("SHA-1 algorithm is not available...");
-            System.exit(2);
-        }
-        return null;
+        return Utils.sha1().digest(hashThis);
     }
 
     /**
@@ -0,0 +1,466 @@
+/*
+ * Java Bittorrent API as its name indicates is a JAVA API that implements the Bittorrent Protocol
+ * This project contains two packages:
+ * 1. jBittorrentAPI is the "client" part, i.e. it implements all classes needed to publish
+ *    files, share them and download them.
+ *    This package also contains example classes on how a developer could create new applications.
+ * 2. trackerBT is the "tracker" part, i.e. it implements a all classes needed to run
+ *    a Bittorrent tracker that coordinates peers exchanges. *
+ *
+ * Copyright (C) 2007 Baptiste Dubuis, Artificial Intelligence Laboratory, EPFL
+ *
+ * This file is part of jbittorrentapi-v1.0.zip
+ *
+ * Java Bittorrent API is free software and a free user study set-up;
+ * you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Java Bittorrent API is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Java Bittorrent API; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * @version 1.0
+ * @author Baptiste Dubuis
+ * To contact the author:
+ * email: baptiste.dubuis@gmail.com
+ *
+ * More information about Java Bittorrent API:
+ *    http://sourceforge.net/projects/bitext/
+ */
+
+
+package jBittorrentAPI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.swing.event.EventListenerList;
+
+/**
+ * Write-back cache of the verified pieces waiting to be written to the
+ * storage. The pieces are gathered in memory and flushed in increasing order,
+ * the consecutive ones being copied into a single buffer, so that the storage
+ * gets large sequential writes instead of one write per piece and file.
+ *
+ * The pieces are flushed by a background thread when the cache holds more
+ * than its high-water mark, or when the oldest piece has waited for the
+ * flush delay. Pieces added while the cache holds twice its high-water mark
+ * wait for the flush. With a high-water mark of 0, the pieces are written at
+ * once by the thread adding them.
+ *
+ * The data of the pieces must be read from the cache until they are written,
+ * which is reported to the WriteListeners. If a flush fails, the pieces that
+ * were not written are dropped from the cache all the same and reported as
+ * failed, so that they are downloaded again. The written data can also be
+ * forced to the device on a regular basis, depending on the sync policy.
+ */
+public class WriteBackCache {
+    /**
+     * The written data is left to the system
+     */
+    public static final int SYNC_NEVER = 0;
+    /**
+     * A file is forced to the device once all its pieces are written
+     */
+    public static final int SYNC_ON_FILE_COMPLETE = 1;
+    /**
+     * The written data is forced to the device on a regular basis
+     */
+    public static final int SYNC_PERIODIC = 2;
+
+    private final Storage storage;
+    private final long[] fileOffsets;
+    private final int pieceLength;
+    private final long highWater;
+    private final long delay;
+    private final long syncInterval;
+    private final TreeMap<Integer, ByteBuffer> pending =
+            new TreeMap<Integer, ByteBuffer>();
+    private final Object flushLock = new Object();
+    private ByteBuffer run = null;
+    /**
+     * Index following the last piece written by the current flush, all the
+     * pieces of the flush before it being written
+     */
+    private int writtenTo = 0;
+    private long size = 0;
+    private long oldest = 0;
+    private boolean closed = false;
+    private boolean dirty = false;
+    private long flushes = 0;
+    private long writes = 0;
+    private long bytesWritten = 0;
+    private long syncs = 0;
+    private final EventListenerList listeners = new EventListenerList();
+
+    /**
+     * Create a new cache writing the pieces into the given storage
+     * @param storage The storage the files are opened in
+     * @param fileLengths The length of each file, in the torrent order
+     * @param pieceLength The length of the pieces of the torrent
+     * @param highWater The number of bytes above which the cache is flushed,
+     * 0 to write the pieces at once
+     * @param delay The time in milliseconds a piece waits at most before being
+     * flushed
+     * @param syncInterval The time in milliseconds between two forces of the
+     * written data to the device, 0 to never force it
+     */
+    public WriteBackCache(Storage storage, long[] fileLengths, int pieceLength,
+                          long highWater, long delay, long syncInterval) {
+        this.storage = storage;
+        this.fileOffsets = new long[fileLengths.length + 1];
+        for (int i = 0; i < fileLengths.length; i++)
+            this.fileOffsets[i + 1] = this.fileOffsets[i] + fileLengths[i];
+        this.pieceLength = pieceLength;
+        this.highWater = highWater;
+        this.delay = delay;
+        this.syncInterval = syncInterval;
+        if (highWater > 0 || syncInterval > 0) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    flushLoop();
+                }
+            }, "WriteBackCache");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Adds the data of a verified piece to the cache. The data is copied, so
+     * the buffer can be reused as soon as this returns
+     * @param piece The piece index
+     * @param data The data of the piece, from its position to its limit
+     * @throws IOException If the piece is written at once and that fails
+     */
+    public void put(int piece, ByteBuffer data) throws IOException {
+        if (this.highWater <= 0) {
+            this.write((long) piece * this.pieceLength, data.duplicate());
+            synchronized (this) {
+                this.dirty = true;
+            }
+            this.firePiecesWritten(new int[] {piece});
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        synchronized (this) {
+            /*
+             * Only the flush thread is woken up here: writers waking each
+             * other in turn would keep it from taking the monitor
+             */
+            if (this.size >= 2 * this.highWater && !this.closed)
+                this.notifyAll();
+            while (this.size >= 2 * this.highWater && !this.closed) {
+                try {
+                    this.wait();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            if (this.pending.isEmpty())
+                this.oldest = System.currentTimeMillis();
+            ByteBuffer old = this.pending.put(piece, copy);
+            if (old != null)
+                this.size -= old.remaining();
+            this.size += copy.remaining();
+            if (this.size >= this.highWater || this.closed)
+                this.notifyAll();
+        }
+        if (this.closed)
+            this.flush();
+    }
+
+    /**
+     * Returns a read-only view of the data of a piece waiting to be written,
+     * or null if the piece is not in the cache
+     * @param piece int
+     * @return ByteBuffer
+     */
+    public synchronized ByteBuffer get(int piece) {
+        ByteBuffer b = this.pending.get(piece);
+        return (b == null) ? null : b.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes all the pieces of the cache to the storage. If a write fails,
+     * the pieces written so far are reported as written, the others are
+     * removed from the cache anyway and reported as failed, then the error is
+     * thrown
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        synchronized (this.flushLock) {
+            TreeMap<Integer, ByteBuffer> batch;
+            synchronized (this) {
+                if (this.pending.isEmpty())
+                    return;
+                batch = new TreeMap<Integer, ByteBuffer>(this.pending);
+            }
+            IOException error = null;
+            try {
+                this.writeRuns(batch);
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+            int[] written = new int[batch.size()];
+            int[] failed = new int[batch.size()];
+            int n = 0;
+            int nf = 0;
+            synchronized (this) {
+                for (Map.Entry<Integer, ByteBuffer> e : batch.entrySet()) {
+                    if (this.pending.get(e.getKey()) != e.getValue())
+                        continue;
+                    this.pending.remove(e.getKey());
+                    this.size -= e.getValue().remaining();
+                    if (e.getKey().intValue() < this.writtenTo)
+                        written[n++] = e.getKey().intValue();
+                    else
+                        failed[nf++] = e.getKey().intValue();
+                }
+                this.oldest = System.currentTimeMillis();
+                this.dirty = true;
+                this.flushes++;
+                this.notifyAll();
+            }
+            int[] w = new int[n];
+            System.arraycopy(written, 0, w, 0, n);
+            if (n > 0)
+                this.firePiecesWritten(w);
+            if (error != null) {
+                int[] f = new int[nf];
+                System.arraycopy(failed, 0, f, 0, nf);
+                this.fireWriteFailed(f);
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Writes the pieces in increasing order, copying the consecutive ones
+     * into the run buffer so that they are written at once. The progress is
+     * kept in writtenTo, so that the pieces written before a failed run are
+     * known
+     * @param batch The pieces to write
+     * @throws IOException
+     */
+    private void writeRuns(TreeMap<Integer, ByteBuffer> batch)
+            throws IOException {
+        if (this.run == null)
+            this.run = ByteBuffer.allocate(Math.max(this.pieceLength,
+                                                    Constants.WRITE_RUN));
+        this.run.clear();
+        this.writtenTo = 0;
+        long start = -1;
+        for (Iterator<Map.Entry<Integer, ByteBuffer>> it =
+                     batch.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, ByteBuffer> e = it.next();
+            long offset = (long) e.getKey().intValue() * this.pieceLength;
+            ByteBuffer data = e.getValue().duplicate();
+            if (start >= 0 && (offset != start + this.run.position() ||
+                               data.remaining() > this.run.remaining())) {
+                this.run.flip();
+                this.write(start, this.run);
+                this.run.clear();
+                this.writtenTo = e.getKey().intValue();
+                start = -1;
+            }
+            if (start < 0)
+                start = offset;
+            this.run.put(data);
+        }
+        if (start >= 0) {
+            this.run.flip();
+            this.write(start, this.run);
+        }
+        this.writtenTo = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Writes data at the given offset of the torrent, in as many files as it
+     * spans
+     * @param offset The offset of the data from the start of the first file
+     * @param data ByteBuffer
+     * @throws IOException
+     */
+    private void write(long offset, ByteBuffer data) throws IOException {
+        int file = 0;
+        while (file < this.fileOffsets.length - 2 &&
+               offset >= this.fileOffsets[file + 1])
+            file++;
+        while (data.hasRemaining()) {
+            if (file >= this.fileOffsets.length - 1)
+                throw new IOException("Write past the end of the torrent");
+            long len = Math.min(data.remaining(),
+                                this.fileOffsets[file + 1] - offset);
+            if (len > 0) {
+                ByteBuffer b = data.duplicate();
+                b.limit(b.position() + (int) len);
+                this.storage.write(file, offset - this.fileOffsets[file], b);
+                data.position(data.position() + (int) len);
+                offset += len;
+                synchronized (this) {
+                    this.writes++;
+                    this.bytesWritten += len;
+                }
+            }
+            file++;
+        }
+    }
+
+    /**
+     * Body of the background thread: flushes the cache when it is above its
+     * high-water mark or when its oldest piece is too old, and forces the
+     * written data to the device when the sync interval has elapsed
+     */
+    private void flushLoop() {
+        long lastSync = System.currentTimeMillis();
+        while (true) {
+            boolean flush = false;
+            boolean sync = false;
+            synchronized (this) {
+                if (this.closed)
+                    return;
+                long now = System.currentTimeMillis();
+                long wait = (this.syncInterval > 0) ?
+                            lastSync + this.syncInterval - now : Long.MAX_VALUE;
+                if (!this.pending.isEmpty()) {
+                    if (this.size >= this.highWater ||
+                        now - this.oldest >= this.delay)
+                        flush = true;
+                    else
+                        wait = Math.min(wait, this.oldest + this.delay - now);
+                }
+                sync = this.syncInterval > 0 && wait <= 0;
+                if (!flush && !sync) {
+                    try {
+                        this.wait(Math.max(1, Math.min(wait, 1000)));
+                    } catch (InterruptedException ie) {}
+                    continue;
+                }
+            }
+            try {
+                if (flush)
+                    this.flush();
+                if (sync) {
+                    lastSync = System.currentTimeMillis();
+                    this.sync();
+                }
+            } catch (IOException ioe) {
+                System.err.println("Could not write pieces: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Forces the data written since the last sync to the device
+     * @throws IOException
+     */
+    private void sync() throws IOException {
+        synchronized (this) {
+            if (!this.dirty)
+                return;
+            this.dirty = false;
+            this.syncs++;
+        }
+        this.storage.flush();
+    }
+
+    /**
+     * Writes the remaining pieces and stops the background thread. Pieces
+     * added afterwards are written at once
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        this.flush();
+        if (this.syncInterval > 0)
+            this.sync();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written
+     * @return long
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of pieces waiting to be written
+     * @return int
+     */
+    public synchronized int getNbPieces() {
+        return this.pending.size();
+    }
+
+    /**
+     * Returns the number of times the cache has been flushed
+     * @return long
+     */
+    public synchronized long getFlushes() {
+        return this.flushes;
+    }
+
+    /**
+     * Returns the number of writes made to the storage, each one covering
+     * consecutive pieces in one file
+     * @return long
+     */
+    public synchronized long getWrites() {
+        return this.writes;
+    }
+
+    /**
+     * Returns the number of bytes written to the storage
+     * @return long
+     */
+    public synchronized long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    /**
+     * Returns the number of times the written data has been forced to the
+     * device
+     * @return long
+     */
+    public synchronized long getSyncs() {
+        return this.syncs;
+    }
+
+    public void addWriteListener(WriteListener listener) {
+        listeners.add(WriteListener.class, listener);
+    }
+
+    public void removeWriteListener(WriteListener listener) {
+        listeners.remove(WriteListener.class, listener);
+    }
+
+    public WriteListener[] getWriteListeners() {
+        return listeners.getListeners(WriteListener.class);
+    }
+
+    protected void firePiecesWritten(int[] pieces) {
+        for (WriteListener listener : getWriteListeners()) {
+            listener.piecesWritten(pieces);
+        }
+    }
+
+    protected void fireWriteFailed(int[] pieces) {
+        for (WriteListener listener : getWriteListeners()) {
+            listener.writeFailed(pieces);
+        }
+    }
+}